@@ -0,0 +1,117 @@
+package org.erlide.core.builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+import org.erlide.core.erlang.ErlangCore;
+import org.erlide.core.erlang.IErlModule;
+import org.erlide.core.erlang.IErlProject;
+import org.erlide.test.support.ErlideTestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+
+public class BuildCacheTest {
+
+    private static final String HEADER = "buildcache_test.hrl";
+
+    private IErlProject erlProject;
+    private File header;
+
+    @Before
+    public void setUp() throws Exception {
+        ErlideTestUtils.initProjects();
+        ErlideTestUtils.initModules();
+        erlProject = ErlideTestUtils.createProject(ErlideTestUtils
+                .getTmpPath("buildcachetest"), "buildcachetest");
+        header = ErlideTestUtils.createTmpFile(HEADER, "-define(X, 1).\n");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ErlideTestUtils.deleteModules();
+        ErlideTestUtils.deleteProjects();
+        header.delete();
+    }
+
+    private static List<IPath> includeDirs(final String... dirs) {
+        final List<IPath> result = new ArrayList<IPath>();
+        for (final String dir : dirs) {
+            result.add(new Path(dir));
+        }
+        return result;
+    }
+
+    private static String getHash(final IErlModule module,
+            final List<IPath> includeDirs) {
+        final BuildCache.Key key = BuildCache.getDefault().getKey(
+                module.getResource(), new File("a.beam"),
+                ErlangCore.getBackendManager().getIdeBackend(),
+                new OtpErlangList(), includeDirs);
+        return key == null ? null : key.hash;
+    }
+
+    @Test
+    public void editedExternalIncludeChangesKey() throws Exception {
+        // given
+        // a module including a header from outside the workspace
+        final IErlModule module = ErlideTestUtils.createModule(erlProject,
+                "a.erl", "-module(a).\n-include(\"" + HEADER + "\").\n");
+        final List<IPath> dirs = includeDirs(header.getParent());
+        final String hash = getHash(module, dirs);
+        assertNotNull(hash);
+        assertEquals(hash, getHash(module, dirs));
+        // when
+        // editing the header
+        ErlideTestUtils.createTmpFile(HEADER, "-define(X, 2).\n");
+        // then
+        // the key changes, so that the old beam isn't restored
+        assertFalse(hash.equals(getHash(module, dirs)));
+    }
+
+    @Test
+    public void includeDirsAreInKey() throws Exception {
+        final IErlModule module = ErlideTestUtils.createModule(erlProject,
+                "a.erl", "-module(a).\n-include(\"" + HEADER + "\").\n");
+        final String hash = getHash(module, includeDirs(header.getParent()));
+        assertNotNull(hash);
+        assertFalse(hash.equals(getHash(module, includeDirs(header
+                .getParent(), "/nonexisting"))));
+    }
+
+    @Test
+    public void includeNextToSourceComesFirst() throws Exception {
+        // given
+        // a header both next to the module and in an include directory
+        final IErlModule module = ErlideTestUtils.createModule(erlProject,
+                "a.erl", "-module(a).\n-include(\"" + HEADER + "\").\n");
+        ErlideTestUtils.createModule(erlProject, HEADER, "-define(X, 0).\n");
+        final List<IPath> dirs = includeDirs(header.getParent());
+        final String hash = getHash(module, dirs);
+        assertNotNull(hash);
+        // when
+        // editing the one in the include directory
+        ErlideTestUtils.createTmpFile(HEADER, "-define(X, 2).\n");
+        // then
+        // the key doesn't change, the compiler uses the one next to the module
+        assertEquals(hash, getHash(module, dirs));
+    }
+
+    @Test
+    public void missingIncludeIsNotCached() throws Exception {
+        final IErlModule module = ErlideTestUtils.createModule(erlProject,
+                "a.erl", "-module(a).\n-include(\"buildcache_missing.hrl\").\n");
+        assertNull(getHash(module, includeDirs(header.getParent())));
+    }
+
+}
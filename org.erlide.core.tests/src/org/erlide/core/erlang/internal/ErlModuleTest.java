@@ -0,0 +1,90 @@
+package org.erlide.core.erlang.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.erlide.core.ErlangPlugin;
+import org.erlide.core.erlang.ErlangCore;
+import org.erlide.core.erlang.IErlElement;
+import org.erlide.core.erlang.IErlFunction;
+import org.erlide.core.erlang.IErlProject;
+import org.erlide.core.text.ErlangToolkit;
+import org.erlide.jinterface.backend.Backend;
+import org.erlide.test.support.ErlideTestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+import erlang.ErlideNoparse;
+
+public class ErlModuleTest {
+
+    private static final String TEXT = "-module(warmup).\nf() -> ok.\n";
+
+    private IErlProject erlProject;
+
+    @Before
+    public void setUp() throws Exception {
+        ErlideTestUtils.initProjects();
+        ErlideTestUtils.initModules();
+        erlProject = ErlideTestUtils.createProject(ErlideTestUtils
+                .getTmpPath("erlmoduletest"), "erlmoduletest");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ErlideTestUtils.deleteModules();
+        ErlideTestUtils.deleteProjects();
+    }
+
+    private static List<String> functionNames(final ErlModule module)
+            throws Exception {
+        final List<String> result = new ArrayList<String>();
+        for (final IErlElement e : module.getChildren()) {
+            if (e instanceof IErlFunction) {
+                result.add(e.getName());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void editAfterWarmUpIsReparsed() throws Exception {
+        // given
+        // a module built from its cached parse, as the warm-up job does
+        final ErlModule module = (ErlModule) ErlideTestUtils.createModule(
+                erlProject, "warmup.erl", TEXT);
+        module.open(null);
+        assertTrue(module.evict());
+        final Backend b = ErlangCore.getBackendManager().getIdeBackend();
+        final List<String> scannerNames = new ArrayList<String>();
+        scannerNames.add(ErlangToolkit.createScannerModuleName(module));
+        final List<String> paths = new ArrayList<String>();
+        paths.add(module.getFilePath());
+        final String stateDir = ErlangPlugin.getDefault().getStateLocation()
+                .toString();
+        final OtpErlangTuple res = ErlideNoparse.cachedParse(b, scannerNames,
+                paths, stateDir)[0];
+        assertNotNull(res);
+        assertTrue(module.warmUp(res));
+        // when
+        // opening it in an editor and adding a function
+        module.initialReconcile();
+        module.reconcileText(TEXT.length(), 0, "g() -> ok.\n", null);
+        module.postReconcile(null);
+        // then
+        // the model has the new function, not the one of the file
+        final List<String> names = functionNames(module);
+        module.finalReconcile();
+        module.disposeScanner();
+        assertEquals(2, names.size());
+        assertTrue(names.contains("g"));
+    }
+
+}
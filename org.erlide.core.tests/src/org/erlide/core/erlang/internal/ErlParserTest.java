@@ -0,0 +1,214 @@
+package org.erlide.core.erlang.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.erlide.core.erlang.ErlElementDelta;
+import org.erlide.core.erlang.ErlangCore;
+import org.erlide.core.erlang.IErlElement;
+import org.erlide.core.erlang.IErlElementDelta;
+import org.erlide.core.erlang.IErlFunction;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * Tests for the incremental update of a module from the forms returned by
+ * noparse: forms that didn't change keep their elements.
+ */
+public class ErlParserTest {
+
+    private ErlModule module;
+
+    @Before
+    public void setUp() {
+        module = new ErlModule(ErlangCore.getModel(), "m.erl", "", null, null);
+    }
+
+    private static OtpErlangTuple tuple(final OtpErlangObject... elems) {
+        return new OtpErlangTuple(elems);
+    }
+
+    private static OtpErlangLong l(final int i) {
+        return new OtpErlangLong(i);
+    }
+
+    // {{Line, LastLine, Offset}, Length}
+    private static OtpErlangTuple pos(final int line, final int lastLine,
+            final int offset, final int length) {
+        return tuple(tuple(l(line), l(lastLine), l(offset)), l(length));
+    }
+
+    // {{Line, Offset}, Length}
+    private static OtpErlangTuple namePos(final int line, final int offset,
+            final int length) {
+        return tuple(tuple(l(line), l(offset)), l(length));
+    }
+
+    /*
+     * A function with one clause, on one line. -record(function, {pos, name,
+     * arity, args, head, clauses, name_pos, comment, exported}) and
+     * -record(clause, {pos, name, args, head, name_pos}).
+     */
+    private static OtpErlangTuple function(final String name,
+            final int arity, final String head, final int line,
+            final int offset, final int length) {
+        final OtpErlangTuple clause = tuple(new OtpErlangAtom("clause"), pos(
+                line, line, offset, length), new OtpErlangAtom(name),
+                new OtpErlangList(), new OtpErlangString(head), namePos(line,
+                        offset, name.length()));
+        return tuple(new OtpErlangAtom("function"), pos(line, line, offset,
+                length), new OtpErlangAtom(name), l(arity),
+                new OtpErlangList(), new OtpErlangString(head),
+                new OtpErlangList(clause), namePos(line, offset, name
+                        .length()), new OtpErlangString(""),
+                new OtpErlangAtom("false"));
+    }
+
+    private ErlElementDelta update(final OtpErlangTuple... forms) {
+        return ErlParser.update(module, new OtpErlangList(forms),
+                new OtpErlangList());
+    }
+
+    private List<IErlElement> members() throws Exception {
+        return module.getChildren();
+    }
+
+    private static IErlElementDelta[] changes(final ErlElementDelta delta) {
+        return delta.getChildren(IErlElementDelta.ALL);
+    }
+
+    @Test
+    public void unchangedFunctionIsKept() throws Exception {
+        update(function("f", 0, "()", 1, 0, 20), function("g", 0, "()", 3, 30,
+                15));
+        final List<IErlElement> before = members();
+
+        // an edit after the last form
+        final ErlElementDelta delta = update(function("f", 0, "()", 1, 0, 20),
+                function("g", 0, "()", 3, 30, 15));
+
+        final List<IErlElement> after = members();
+        assertSame(before.get(0), after.get(0));
+        assertSame(before.get(1), after.get(1));
+        assertEquals(0, changes(delta).length);
+    }
+
+    @Test
+    public void movedFunctionIsNotChanged() throws Exception {
+        update(function("f", 0, "()", 1, 0, 20), function("g", 0, "()", 3, 30,
+                15));
+        final List<IErlElement> before = members();
+        final SourceRefElement f = (SourceRefElement) before.get(0);
+        final SourceRefElement fClause = (SourceRefElement) ((ErlFunction) f)
+                .getClauses().get(0);
+
+        // two lines inserted at the top
+        final ErlElementDelta delta = update(function("f", 0, "()", 3, 10, 20),
+                function("g", 0, "()", 5, 40, 15));
+
+        final List<IErlElement> after = members();
+        // the elements of the previous snapshot aren't modified
+        assertNotSame(before.get(0), after.get(0));
+        assertNotSame(before.get(1), after.get(1));
+        assertEquals(0, f.getSourceRange().getOffset());
+        assertEquals(1, f.getLineStart());
+        assertEquals(0, fClause.getSourceRange().getOffset());
+        assertEquals(1, fClause.getLineStart());
+        final SourceRefElement newF = (SourceRefElement) after.get(0);
+        final SourceRefElement newFClause = (SourceRefElement) ((ErlFunction) newF)
+                .getClauses().get(0);
+        assertEquals(f, newF);
+        assertEquals(10, newF.getSourceRange().getOffset());
+        assertEquals(3, newF.getLineStart());
+        assertEquals(10, newFClause.getSourceRange().getOffset());
+        assertEquals(3, newFClause.getLineStart());
+        assertEquals(40, ((SourceRefElement) after.get(1)).getSourceRange()
+                .getOffset());
+        assertEquals(0, changes(delta).length);
+    }
+
+    @Test
+    public void editedBodyIsChanged() throws Exception {
+        update(function("f", 0, "()", 1, 0, 20), function("g", 0, "()", 3, 30,
+                15));
+        final List<IErlElement> before = members();
+
+        // the body of f got longer
+        final ErlElementDelta delta = update(function("f", 0, "()", 1, 0, 25),
+                function("g", 0, "()", 3, 35, 15));
+
+        final List<IErlElement> after = members();
+        assertNotSame(before.get(0), after.get(0));
+        assertEquals(35, ((SourceRefElement) after.get(1)).getSourceRange()
+                .getOffset());
+        final IErlElementDelta[] changes = changes(delta);
+        assertEquals(1, changes.length);
+        assertEquals(IErlElementDelta.CHANGED, changes[0].getKind());
+        assertTrue((changes[0].getFlags() & IErlElementDelta.F_CONTENT) != 0);
+        assertSame(after.get(0), changes[0].getElement());
+    }
+
+    @Test
+    public void arityChangeIsRemovedAndAdded() throws Exception {
+        update(function("f", 0, "()", 1, 0, 20));
+        final IErlElement old = members().get(0);
+
+        final ErlElementDelta delta = update(function("f", 1, "(X)", 1, 0, 21));
+
+        final IErlElement added = members().get(0);
+        assertEquals(1, ((IErlFunction) added).getArity());
+        final IErlElementDelta[] changes = changes(delta);
+        assertEquals(2, changes.length);
+        for (final IErlElementDelta change : changes) {
+            if (change.getKind() == IErlElementDelta.ADDED) {
+                assertSame(added, change.getElement());
+            } else {
+                assertEquals(IErlElementDelta.REMOVED, change.getKind());
+                assertSame(old, change.getElement());
+            }
+        }
+    }
+
+    @Test
+    public void duplicateForms() throws Exception {
+        update(function("f", 0, "()", 1, 0, 20), function("f", 0, "()", 3, 30,
+                20));
+        final List<IErlElement> before = members();
+        assertNotSame(before.get(0), before.get(1));
+
+        // a third copy
+        ErlElementDelta delta = update(function("f", 0, "()", 1, 0, 20),
+                function("f", 0, "()", 3, 30, 20), function("f", 0, "()", 5,
+                        60, 20));
+        List<IErlElement> after = members();
+        assertSame(before.get(0), after.get(0));
+        assertSame(before.get(1), after.get(1));
+        IErlElementDelta[] changes = changes(delta);
+        assertEquals(1, changes.length);
+        assertEquals(IErlElementDelta.ADDED, changes[0].getKind());
+        assertSame(after.get(2), changes[0].getElement());
+
+        // back to one
+        delta = update(function("f", 0, "()", 1, 0, 20));
+        after = members();
+        assertEquals(1, after.size());
+        assertSame(before.get(0), after.get(0));
+        changes = changes(delta);
+        assertTrue(changes.length > 0);
+        for (final IErlElementDelta change : changes) {
+            assertEquals(IErlElementDelta.REMOVED, change.getKind());
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+package org.erlide.core.erlang.internal;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.erlide.core.erlang.IErlElement;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
+
+public class SourceIndexTest {
+
+    private ErlAttribute attribute;
+    private ErlFunction f;
+    private ErlFunctionClause f1;
+    private ErlFunctionClause f2;
+    private ErlFunction g;
+    private List<IErlElement> forms;
+
+    private static void setRange(final SourceRefElement e, final int offset,
+            final int end, final int lineStart, final int lineEnd) {
+        e.setSourceRangeOffset(offset);
+        e.setSourceRangeLength(end - offset);
+        e.setLineStart(lineStart);
+        e.setLineEnd(lineEnd);
+    }
+
+    private static ErlFunction function(final String name, final int offset,
+            final int end, final int lineStart, final int lineEnd) {
+        final ErlFunction fun = new ErlFunction(null, name, 0, "", null,
+                false, new OtpErlangList());
+        setRange(fun, offset, end, lineStart, lineEnd);
+        return fun;
+    }
+
+    private static ErlFunctionClause clause(final ErlFunction fun,
+            final int offset, final int end, final int lineStart,
+            final int lineEnd) {
+        final ErlFunctionClause c = new ErlFunctionClause(fun, fun.getName(),
+                "", new OtpErlangList());
+        setRange(c, offset, end, lineStart, lineEnd);
+        fun.addChild(c);
+        return c;
+    }
+
+    /*
+     * -module(m).          offsets 0-14, line 0
+     *
+     * f() -> clause 1;     offsets 20-38, lines 2-3
+     * f() -> clause 2.     offsets 40-60, lines 4-5
+     *
+     * g() -> ok.           offsets 70-80, line 7
+     */
+    @Before
+    public void setUp() {
+        attribute = new ErlAttribute(null, "module", new OtpErlangAtom("m"),
+                null);
+        setRange(attribute, 0, 14, 0, 0);
+        f = function("f", 20, 60, 2, 5);
+        f1 = clause(f, 20, 38, 2, 3);
+        f2 = clause(f, 40, 60, 4, 5);
+        g = function("g", 70, 80, 7, 7);
+        forms = new ArrayList<IErlElement>();
+        // not in source order, the index sorts them
+        forms.add(g);
+        forms.add(attribute);
+        forms.add(f);
+    }
+
+    @Test
+    public void byOffset_nested() {
+        final SourceIndex index = SourceIndex.byOffset(forms);
+        assertSame(f1, index.find(25));
+        assertSame(f2, index.find(45));
+        // between the clauses, but inside the function
+        assertSame(f, index.find(39));
+        assertSame(g, index.find(75));
+    }
+
+    @Test
+    public void byOffset_rangeEnds() {
+        final SourceIndex index = SourceIndex.byOffset(forms);
+        assertSame(attribute, index.find(0));
+        assertSame(attribute, index.find(14));
+        assertSame(f1, index.find(20));
+        assertSame(f1, index.find(38));
+        assertSame(f2, index.find(40));
+        assertSame(f2, index.find(60));
+        assertSame(g, index.find(70));
+        assertSame(g, index.find(80));
+    }
+
+    @Test
+    public void byOffset_gaps() {
+        final SourceIndex index = SourceIndex.byOffset(forms);
+        assertNull(index.find(-1));
+        assertNull(index.find(15));
+        assertNull(index.find(19));
+        assertNull(index.find(61));
+        assertNull(index.find(69));
+        assertNull(index.find(81));
+        assertNull(index.find(1000));
+    }
+
+    @Test
+    public void byLine() {
+        final SourceIndex index = SourceIndex.byLine(forms);
+        assertSame(attribute, index.find(0));
+        assertNull(index.find(1));
+        assertSame(f1, index.find(2));
+        assertSame(f1, index.find(3));
+        assertSame(f2, index.find(4));
+        assertSame(f2, index.find(5));
+        assertNull(index.find(6));
+        assertSame(g, index.find(7));
+        assertNull(index.find(8));
+    }
+
+    @Test
+    public void overlappingRanges() {
+        // broken code can give a form that covers the next ones
+        final ErlFunction outer = function("outer", 0, 100, 0, 10);
+        final ErlFunction inner = function("inner", 10, 20, 1, 2);
+        final List<IErlElement> elements = new ArrayList<IErlElement>();
+        elements.add(outer);
+        elements.add(inner);
+        final SourceIndex index = SourceIndex.byOffset(elements);
+        assertSame(inner, index.find(15));
+        assertSame(outer, index.find(50));
+        assertSame(outer, index.find(5));
+    }
+
+    @Test
+    public void emptyModule() {
+        final List<IErlElement> none = new ArrayList<IErlElement>();
+        assertNull(SourceIndex.byOffset(none).find(0));
+        assertNull(SourceIndex.byLine(none).find(0));
+        final ErlFunction empty = function("empty", 0, 10, 0, 1);
+        assertNull(SourceIndex.byOffset(empty).find(5));
+    }
+
+}
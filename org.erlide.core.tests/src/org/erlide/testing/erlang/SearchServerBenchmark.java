@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package org.erlide.testing.erlang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.erlide.jinterface.backend.BackendBatch;
+import org.erlide.jinterface.backend.util.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+/**
+ * Measures erlide_search_server on a synthetic workspace of 5000 modules,
+ * whose .refs files are generated directly (no sources are parsed): the first
+ * search, that has to read all of them, searches on the warm index, and
+ * searches from several threads at once.
+ */
+public class SearchServerBenchmark extends AbstractErlangTest {
+
+    private static final int MODULES = 5000;
+    private static final int FUNCTIONS = 20;
+    private static final int CALLS = 40;
+    private static final int QUERIES = 200;
+    private static final int THREADS = 8;
+    private static final int TIMEOUT = 120000;
+
+    private File stateDir;
+    private OtpErlangList scope;
+    // "module:function" -> number of references
+    private final Map<String, Integer> expected = new HashMap<String, Integer>();
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        stateDir = File.createTempFile("search_bench", "");
+        stateDir.delete();
+        stateDir.mkdirs();
+        final Random random = new Random(42);
+        final OtpErlangObject[] modules = new OtpErlangObject[MODULES];
+        for (int m = 0; m < MODULES; m++) {
+            writeRefs(m, random);
+            modules[m] = new OtpErlangTuple(new OtpErlangObject[] {
+                    new OtpErlangAtom(scannerName(m)),
+                    new OtpErlangString("/bench/" + moduleName(m) + ".erl") });
+        }
+        scope = new OtpErlangList(modules);
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        final BackendBatch batch = getBackend().batch();
+        for (int m = 0; m < MODULES; m++) {
+            batch.add("erlide_search_server", "remove_module", "a",
+                    scannerName(m));
+        }
+        batch.call(TIMEOUT);
+        final File[] files = stateDir.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                f.delete();
+            }
+        }
+        stateDir.delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void searchThroughput() throws Exception {
+        long t = System.currentTimeMillis();
+        check(0, 0);
+        System.out.printf("search server: first search over %d modules: "
+                + "%d ms%n", MODULES, System.currentTimeMillis() - t);
+
+        t = System.currentTimeMillis();
+        for (int i = 0; i < QUERIES; i++) {
+            check(i % MODULES, i % FUNCTIONS);
+        }
+        report("sequential", QUERIES, System.currentTimeMillis() - t);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final List<Future<Object>> results = new ArrayList<Future<Object>>();
+        t = System.currentTimeMillis();
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (int j = 0; j < QUERIES / THREADS; j++) {
+                        final int q = thread * QUERIES / THREADS + j;
+                        check(q * 7 % MODULES, q % FUNCTIONS);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (final Future<Object> f : results) {
+            f.get();
+        }
+        report(THREADS + " threads", QUERIES, System.currentTimeMillis() - t);
+        executor.shutdown();
+    }
+
+    private void report(final String what, final int queries, final long time) {
+        System.out.printf("search server: %s: %d searches in %d ms "
+                + "(%.1f/s)%n", what, queries, time, queries * 1000.0
+                / Math.max(1, time));
+    }
+
+    /**
+     * Search for the references to a function and check their number.
+     */
+    private void check(final int m, final int f) throws Exception {
+        final OtpErlangObject pattern = new OtpErlangTuple(
+                new OtpErlangObject[] { new OtpErlangAtom("external_call"),
+                        new OtpErlangAtom(moduleName(m)),
+                        new OtpErlangAtom(functionName(f)),
+                        new OtpErlangLong(0) });
+        final OtpErlangObject r = getBackend().call(TIMEOUT,
+                "erlide_search_server", "find_refs", "xxs", pattern, scope,
+                stateDir.getAbsolutePath());
+        assertNotNull(r);
+        assertTrue(r.toString(), Util.isOk(r));
+        final Integer n = expected.get(moduleName(m) + ":" + functionName(f));
+        final OtpErlangList refs = (OtpErlangList) ((OtpErlangTuple) r)
+                .elementAt(1);
+        assertEquals(n == null ? 0 : n.intValue(), refs.arity());
+    }
+
+    /*
+     * Each module defines FUNCTIONS functions, each of them calling CALLS /
+     * FUNCTIONS functions, half of them in other modules.
+     */
+    private void writeRefs(final int m, final Random random)
+            throws IOException {
+        final List<OtpErlangObject> refs = new ArrayList<OtpErlangObject>();
+        int offset = 0;
+        for (int f = 0; f < FUNCTIONS; f++) {
+            final String function = functionName(f);
+            refs.add(ref(tuple("function_def", atom(function),
+                    new OtpErlangLong(0)), offset, function));
+            for (int c = 0; c < CALLS / FUNCTIONS; c++) {
+                offset += 20;
+                final int calledF = random.nextInt(FUNCTIONS);
+                if (c % 2 == 0) {
+                    final int calledM = random.nextInt(MODULES);
+                    refs.add(ref(tuple("external_call",
+                            atom(moduleName(calledM)),
+                            atom(functionName(calledF)), new OtpErlangLong(0)),
+                            offset, function));
+                    count(calledM, calledF);
+                } else {
+                    refs.add(ref(tuple("local_call",
+                            atom(functionName(calledF)), new OtpErlangLong(0)),
+                            offset, function));
+                    count(m, calledF);
+                }
+            }
+            offset += 20;
+        }
+        final OtpOutputStream out = new OtpOutputStream();
+        // binary_to_term wants the version tag
+        out.write1(131);
+        out.write_any(new OtpErlangList(refs.toArray(new OtpErlangObject[refs
+                .size()])));
+        final FileOutputStream file = new FileOutputStream(new File(stateDir,
+                scannerName(m) + ".refs"));
+        try {
+            file.write(out.toByteArray());
+        } finally {
+            file.close();
+        }
+    }
+
+    private void count(final int m, final int f) {
+        final String key = moduleName(m) + ":" + functionName(f);
+        final Integer n = expected.get(key);
+        expected.put(key, n == null ? 1 : n.intValue() + 1);
+    }
+
+    // -record(ref, {data, offset, length, function, arity, clause,
+    // sub_clause}).
+    private static OtpErlangObject ref(final OtpErlangObject data,
+            final int offset, final String function) {
+        return tuple("ref", data, new OtpErlangLong(offset), new OtpErlangLong(
+                10), atom(function), new OtpErlangLong(0), new OtpErlangString(
+                function + "()"), atom("false"));
+    }
+
+    private static OtpErlangTuple tuple(final String tag,
+            final OtpErlangObject... elements) {
+        final OtpErlangObject[] all = new OtpErlangObject[elements.length + 1];
+        all[0] = atom(tag);
+        System.arraycopy(elements, 0, all, 1, elements.length);
+        return new OtpErlangTuple(all);
+    }
+
+    private static OtpErlangAtom atom(final String name) {
+        return new OtpErlangAtom(name);
+    }
+
+    private static String scannerName(final int m) {
+        return "search_bench_" + moduleName(m);
+    }
+
+    private static String moduleName(final int m) {
+        return "m" + m;
+    }
+
+    private static String functionName(final int f) {
+        return "f" + f;
+    }
+}
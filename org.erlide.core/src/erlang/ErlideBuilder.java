@@ -14,6 +14,7 @@ import org.erlide.jinterface.util.ErlLogger;
 import org.erlide.runtime.backend.ErlideBackend;
 
 import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
 import com.ericsson.otp.erlang.OtpErlangObject;
 import com.google.common.collect.Lists;
 
@@ -46,6 +47,19 @@ public class ErlideBuilder {
                 "bad result from erlide_builder:source_clash: " + res);
     }
 
+    public static int getSchedulerCount(final Backend backend) {
+        try {
+            final OtpErlangObject res = backend.call("erlang", "system_info",
+                    "a", "schedulers");
+            if (res instanceof OtpErlangLong) {
+                return ((OtpErlangLong) res).intValue();
+            }
+        } catch (final Exception e) {
+            ErlLogger.debug(e);
+        }
+        return 1;
+    }
+
     public static OtpErlangList getCodeClashes(final Backend b)
             throws BackendException {
         final OtpErlangList res = (OtpErlangList) b.call("erlide_builder",
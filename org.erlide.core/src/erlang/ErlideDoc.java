@@ -1,10 +1,12 @@
 package erlang;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
 import org.erlide.jinterface.backend.Backend;
 import org.erlide.jinterface.backend.BackendException;
+import org.erlide.jinterface.backend.util.Util;
 import org.erlide.jinterface.util.ErlLogger;
 
 import com.ericsson.otp.erlang.OtpErlangList;
@@ -35,6 +37,26 @@ public class ErlideDoc {
         return res;
     }
 
+    /**
+     * @return the names of all the modules in the code path of the backend,
+     *         sorted
+     */
+    public static List<String> getAllModules(final Backend b) {
+        final List<String> result = new ArrayList<String>();
+        try {
+            final OtpErlangObject res = b.call("erlide_otp_doc",
+                    "get_all_modules", "");
+            if (res instanceof OtpErlangList) {
+                for (final OtpErlangObject o : (OtpErlangList) res) {
+                    result.add(Util.stringValue(o));
+                }
+            }
+        } catch (final BackendException e) {
+            ErlLogger.warn(e);
+        }
+        return result;
+    }
+
     @SuppressWarnings("boxing")
     public static OtpErlangObject getOtpDoc(final Backend ide, final Backend b,
             final int offset, final String stateDir, final String module,
@@ -1,16 +1,21 @@
 package erlang;
 
+import java.util.List;
+
 import org.erlide.core.erlang.ErlModelException;
 import org.erlide.core.erlang.IErlElement;
 import org.erlide.core.erlang.IErlFunction;
 import org.erlide.core.erlang.IErlModule;
 import org.erlide.jinterface.backend.Backend;
+import org.erlide.jinterface.backend.BackendBatch;
 import org.erlide.jinterface.backend.BackendException;
 import org.erlide.jinterface.backend.util.Util;
+import org.erlide.jinterface.rpc.RpcResult;
 import org.erlide.jinterface.util.ErlLogger;
 
 import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.SignatureException;
 
 public class ErlideNoparse {
 
@@ -34,6 +39,41 @@ public class ErlideNoparse {
         return res;
     }
 
+    /**
+     * Read the parse caches of several modules, in parallel on the backend.
+     * Modules without an up to date cache aren't parsed.
+     * 
+     * @return for each module, the same as initialParse, or null if it has no
+     *         cache
+     */
+    public static OtpErlangTuple[] cachedParse(final Backend b,
+            final List<String> scannerModuleNames,
+            final List<String> moduleFileNames, final String stateDir) {
+        final OtpErlangTuple[] result = new OtpErlangTuple[scannerModuleNames
+                .size()];
+        try {
+            final BackendBatch batch = b.batch();
+            for (int i = 0; i < result.length; i++) {
+                batch.add(ERLIDE_NOPARSE, "cached_parse", "ass",
+                        scannerModuleNames.get(i), moduleFileNames.get(i),
+                        stateDir);
+            }
+            final RpcResult[] res = batch.call(200000);
+            for (int i = 0; i < result.length; i++) {
+                final OtpErlangObject r = res[i].getValue();
+                if (res[i].isOk() && r instanceof OtpErlangTuple
+                        && Util.isOk(r)) {
+                    result[i] = (OtpErlangTuple) r;
+                }
+            }
+        } catch (final SignatureException e) {
+            ErlLogger.warn(e);
+        } catch (final BackendException e) {
+            ErlLogger.warn(e);
+        }
+        return result;
+    }
+
     public static OtpErlangTuple reparse(final Backend b,
             final String scannerModuleName) {
         OtpErlangTuple res = null;
@@ -6,6 +6,7 @@ import java.util.List;
 import org.erlide.core.ErlangPlugin;
 import org.erlide.core.erlang.ErlToken;
 import org.erlide.core.erlang.ErlangCore;
+import org.erlide.jinterface.backend.Backend;
 import org.erlide.jinterface.backend.BackendException;
 import org.erlide.jinterface.backend.util.Assert;
 import org.erlide.jinterface.backend.util.Util;
@@ -15,6 +16,7 @@ import org.erlide.jinterface.util.ErlUtils;
 import com.ericsson.otp.erlang.OtpErlangAtom;
 import com.ericsson.otp.erlang.OtpErlangBinary;
 import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
 import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangTuple;
 
@@ -71,25 +73,24 @@ public class ErlideScanner {
         return null;
     }
 
-    @SuppressWarnings("boxing")
-    public static void replaceText(final String module, final int offset,
-            final int removeLength, final String newText) {
-        try {
-            // ErlLogger.debug("replaceText %s %d %d <length %d>", module,
-            // offset,
-            // removeLength, newTextLen);
-            // ErlLogger.debug("replaceText %s %d %d \"%s\"", module, offset,
-            // removeLength, newText);
-            final OtpErlangObject r = ErlangCore
-                    .getBackendManager()
-                    .getIdeBackend()
-                    .call(ERLIDE_SCANNER, "replaceText", "aiis", module,
-                            offset, removeLength, newText);
-            if (r instanceof OtpErlangTuple) {
-                ErlLogger.error("GOT::" + r.toString());
-            }
-        } catch (final BackendException e) {
-            ErlLogger.debug(e);
+    /**
+     * Send a batch of text changes to the scanner, without waiting. They are
+     * sent directly to the scanner process, so they are handled before any
+     * call made after this one.
+     * 
+     * @param seq
+     *            the number of the batch, starting from 1 after the initial
+     *            scan
+     * @param changes
+     *            a list of <code>{Offset, RemoveLength, NewText}</code>
+     */
+    public static void sendChanges(final String module, final int seq,
+            final OtpErlangList changes) {
+        final OtpErlangObject msg = new OtpErlangTuple(new OtpErlangObject[] {
+                new OtpErlangAtom("changes"), new OtpErlangLong(seq), changes });
+        final Backend b = ErlangCore.getBackendManager().getIdeBackend();
+        if (b != null) {
+            b.send(module, msg);
         }
     }
 
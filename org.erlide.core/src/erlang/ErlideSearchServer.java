@@ -8,6 +8,7 @@ import org.erlide.core.erlang.IErlModule;
 import org.erlide.core.search.ModuleLineFunctionArityRef;
 import org.erlide.core.text.ErlangToolkit;
 import org.erlide.jinterface.backend.Backend;
+import org.erlide.jinterface.backend.BackendException;
 import org.erlide.jinterface.backend.util.Util;
 import org.erlide.jinterface.util.ErlLogger;
 
@@ -15,6 +16,7 @@ import com.ericsson.otp.erlang.OtpErlangAtom;
 import com.ericsson.otp.erlang.OtpErlangList;
 import com.ericsson.otp.erlang.OtpErlangLong;
 import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPid;
 import com.ericsson.otp.erlang.OtpErlangRangeException;
 import com.ericsson.otp.erlang.OtpErlangString;
 import com.ericsson.otp.erlang.OtpErlangTuple;
@@ -87,11 +89,59 @@ public class ErlideSearchServer {
         return findRefs(b, ref, scope, externalScope, stateDir);
     }
 
+    /**
+     * Start searching in the background. The results are sent as
+     * <code>find_refs</code> events: <code>{SearchPid, refs, Refs}</code>,
+     * where Refs can be read with {@link #getRefs(OtpErlangList)}, and finally
+     * <code>{SearchPid, done, Chunks, Result}</code>, Chunks being the number
+     * of refs events sent (they may arrive after the done event).
+     * 
+     * @return the search process, to tell its events from other searches' and
+     *         to cancel it
+     */
+    public static OtpErlangPid startFindRefs(final Backend b,
+            final ErlangSearchPattern ref, final Collection<IResource> scope,
+            final Collection<IErlModule> externalScope, final String stateDir)
+            throws BackendException {
+        final OtpErlangObject r = b.call("erlide_search_server",
+                "start_find_refs", "xxs", ref.getSearchObject(),
+                getModulesFromScope(scope, externalScope), stateDir);
+        if (!Util.isOk(r)) {
+            throw new BackendException("could not start search: " + r);
+        }
+        return (OtpErlangPid) ((OtpErlangTuple) r).elementAt(1);
+    }
+
+    public static void cancelFindRefs(final Backend b,
+            final OtpErlangPid search) {
+        try {
+            b.call("erlide_search_server", "cancel_find_refs", "x", search);
+        } catch (final BackendException e) {
+            ErlLogger.warn(e);
+        }
+    }
+
+    /**
+     * @param refs
+     *            the refs of a <code>find_refs</code> event
+     */
+    public static List<ModuleLineFunctionArityRef> getRefs(
+            final OtpErlangList refs) throws OtpErlangRangeException {
+        final List<ModuleLineFunctionArityRef> result = Lists
+                .newArrayListWithCapacity(refs.arity());
+        addRefs(result, refs);
+        return result;
+    }
+
     private static void addSearchResult(
             final List<ModuleLineFunctionArityRef> result,
             final OtpErlangObject r) throws OtpErlangRangeException {
         final OtpErlangTuple t = (OtpErlangTuple) r;
-        final OtpErlangList l = (OtpErlangList) t.elementAt(1);
+        addRefs(result, (OtpErlangList) t.elementAt(1));
+    }
+
+    private static void addRefs(final List<ModuleLineFunctionArityRef> result,
+            final OtpErlangList l) throws OtpErlangRangeException {
         for (final OtpErlangObject i : l) {
             /*
              * find_data([#ref{function=F, arity=A, clause=C, data=D, offset=O,
@@ -25,8 +25,10 @@ import org.eclipse.core.runtime.MultiStatus;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Plugin;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.core.runtime.preferences.InstanceScope;
 import org.erlide.core.erlang.ErlangCore;
+import org.erlide.core.erlang.internal.ModelWarmupJob;
 import org.erlide.core.erlang.util.ErlideUtil;
 import org.erlide.core.platform.PlatformChangeListener;
 import org.erlide.jinterface.util.ErlLogger;
@@ -115,6 +117,7 @@ public class ErlangPlugin extends Plugin {
     public void stop(final BundleContext context) throws Exception {
         try {
             ResourcesPlugin.getWorkspace().removeSaveParticipant(this);
+            Job.getJobManager().cancel(ModelWarmupJob.class);
             ErlangCore.getModelManager().shutdown();
             platformListener.dispose();
         } finally {
@@ -180,6 +183,11 @@ public class ErlangPlugin extends Plugin {
                     }
                 });
 
+        if (ModelWarmupJob.isEnabled() && !ErlideUtil.isTest()) {
+            // give the workbench some time to come up first
+            new ModelWarmupJob().schedule(5000);
+        }
+
         ErlLogger.debug("Started CORE");
     }
 
@@ -0,0 +1,354 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package org.erlide.core.builder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+import org.erlide.core.ErlangPlugin;
+import org.erlide.jinterface.backend.Backend;
+import org.erlide.jinterface.backend.BackendException;
+import org.erlide.jinterface.backend.RuntimeInfo;
+import org.erlide.jinterface.rpc.RpcFuture;
+import org.erlide.jinterface.util.ErlLogger;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+/**
+ * A cache of compiled modules, so that files whose time stamp changed but
+ * whose contents didn't (for example after switching branches) don't need to
+ * be compiled again.
+ *
+ * Entries are keyed by a hash of the source and its location, of the files it
+ * includes (recursively, found the way the compiler finds them), of the
+ * include directories, of the compiler options and of the OTP version. Each
+ * entry holds the beam file and the result of the compilation, so that the
+ * messages can be shown again. Only successful compilations are cached, and
+ * modules with include files that can't be found aren't cached at all.
+ */
+final class BuildCache {
+
+    private static final boolean ENABLED = !"false".equals(System
+            .getProperty("erlide.builder.cache"));
+    private static final int MAX_ENTRIES = 5000;
+    private static final Pattern INCLUDE = Pattern.compile(
+            "^\\s*-\\s*include(_lib)?\\s*\\(\\s*\"([^\"]+)\"",
+            Pattern.MULTILINE);
+
+    private static final BuildCache instance = new BuildCache();
+
+    private final ConcurrentMap<RpcFuture, Key> pending = new ConcurrentHashMap<RpcFuture, Key>();
+    private final AtomicInteger stored = new AtomicInteger();
+    // backend -> application -> its directory
+    private final Map<Backend, Map<String, String>> libDirs = new WeakHashMap<Backend, Map<String, String>>();
+
+    static final class Key {
+        final String hash;
+        final File beam;
+
+        Key(final String hash, final File beam) {
+            this.hash = hash;
+            this.beam = beam;
+        }
+    }
+
+    private BuildCache() {
+    }
+
+    static BuildCache getDefault() {
+        return instance;
+    }
+
+    /**
+     * @return the key for compiling the source into the given beam file, or
+     *         null if the module can't be cached
+     */
+    Key getKey(final IResource source, final File beam,
+            final Backend backend, final OtpErlangList compilerOptions,
+            final Collection<IPath> includeDirs) {
+        if (!ENABLED || getDir() == null) {
+            return null;
+        }
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-1");
+            final RuntimeInfo info = backend.getInfo();
+            if (info != null && info.getVersion() != null) {
+                md.update(info.getVersion().toString().getBytes("UTF-8"));
+            }
+            md.update(compilerOptions.toString().getBytes("UTF-8"));
+            md.update(beam.getName().getBytes("UTF-8"));
+            md.update(source.getFullPath().toString().getBytes("UTF-8"));
+
+            // like the compiler, look next to the source first
+            final File file = source.getLocation().toFile();
+            final List<File> path = new ArrayList<File>();
+            path.add(file.getParentFile());
+            for (final IPath dir : includeDirs) {
+                if (dir != null) {
+                    path.add(dir.toFile());
+                    md.update(dir.toString().getBytes("UTF-8"));
+                }
+            }
+
+            final Set<File> seen = new HashSet<File>();
+            final LinkedList<File> todo = new LinkedList<File>();
+            todo.add(file);
+            seen.add(file);
+            while (!todo.isEmpty()) {
+                final File f = todo.removeFirst();
+                final byte[] content = read(f);
+                md.update(f.getPath().getBytes("UTF-8"));
+                md.update(content);
+                final Matcher m = INCLUDE.matcher(new String(content,
+                        "ISO-8859-1"));
+                while (m.find()) {
+                    final String name = m.group(2);
+                    File inc = findInclude(name, path);
+                    if (inc == null && m.group(1) != null) {
+                        inc = findLibInclude(name, backend);
+                    }
+                    if (inc == null) {
+                        // we can't tell if it changed
+                        return null;
+                    }
+                    if (seen.add(inc)) {
+                        todo.add(inc);
+                    }
+                }
+            }
+            return new Key(toHex(md.digest()), beam);
+        } catch (final NoSuchAlgorithmException e) {
+            return null;
+        } catch (final IOException e) {
+            ErlLogger.debug(e);
+            return null;
+        }
+    }
+
+    private static File findInclude(final String name, final List<File> path) {
+        final File file = new File(name);
+        if (file.isAbsolute()) {
+            return file.isFile() ? file : null;
+        }
+        for (final File dir : path) {
+            final File inc = new File(dir, name);
+            if (inc.isFile()) {
+                return inc;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * include_lib("app/dir/file.hrl") is looked up in the directory of the
+     * application, as given by code:lib_dir(app).
+     */
+    private File findLibInclude(final String name, final Backend backend) {
+        final int i = name.indexOf('/');
+        if (i <= 0) {
+            return null;
+        }
+        final String dir = getLibDir(name.substring(0, i), backend);
+        if (dir == null) {
+            return null;
+        }
+        final File inc = new File(dir, name.substring(i + 1));
+        return inc.isFile() ? inc : null;
+    }
+
+    private String getLibDir(final String app, final Backend backend) {
+        Map<String, String> dirs;
+        synchronized (libDirs) {
+            dirs = libDirs.get(backend);
+            if (dirs == null) {
+                dirs = new ConcurrentHashMap<String, String>();
+                libDirs.put(backend, dirs);
+            }
+        }
+        String dir = dirs.get(app);
+        if (dir == null) {
+            try {
+                final OtpErlangObject r = backend.call("code", "lib_dir", "a",
+                        app);
+                if (r instanceof OtpErlangString) {
+                    dir = ((OtpErlangString) r).stringValue();
+                    dirs.put(app, dir);
+                }
+            } catch (final BackendException e) {
+                ErlLogger.debug(e);
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * If the key is cached, restore the beam file and return a future holding
+     * the compilation result, otherwise return null.
+     */
+    RpcFuture restore(final Key key, final String env) {
+        final File dir = getDir();
+        final File beam = new File(dir, key.hash + ".beam");
+        final File result = new File(dir, key.hash + ".result");
+        if (!beam.exists() || !result.exists()) {
+            return null;
+        }
+        try {
+            final OtpErlangObject r = new OtpInputStream(read(result))
+                    .read_any();
+            write(key.beam, read(beam));
+            final long now = System.currentTimeMillis();
+            beam.setLastModified(now);
+            result.setLastModified(now);
+            return RpcFuture.forResult(r, env);
+        } catch (final Exception e) {
+            ErlLogger.debug(e);
+            beam.delete();
+            result.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Remember the key of a compilation, so that its result can be stored when
+     * it completes.
+     */
+    void compiling(final RpcFuture future, final Key key) {
+        pending.put(future, key);
+    }
+
+    void completed(final RpcFuture future, final OtpErlangObject r) {
+        final Key key = pending.remove(future);
+        if (key == null || !isOk(r) || !key.beam.exists()) {
+            return;
+        }
+        final File dir = getDir();
+        try {
+            dir.mkdirs();
+            final File result = new File(dir, key.hash + ".result");
+            write(result, new OtpOutputStream(r).toByteArray());
+            // the beam last and atomically, so that a partial entry is
+            // never used
+            final File tmp = new File(dir, key.hash + ".tmp");
+            write(tmp, read(key.beam));
+            final File beam = new File(dir, key.hash + ".beam");
+            if (!tmp.renameTo(beam)) {
+                beam.delete();
+                tmp.renameTo(beam);
+            }
+        } catch (final IOException e) {
+            ErlLogger.debug(e);
+            return;
+        }
+        if (stored.incrementAndGet() % 100 == 0) {
+            prune(dir);
+        }
+    }
+
+    private static boolean isOk(final OtpErlangObject r) {
+        if (!(r instanceof OtpErlangTuple)) {
+            return false;
+        }
+        final OtpErlangTuple t = (OtpErlangTuple) r;
+        return t.arity() > 0 && t.elementAt(0) instanceof OtpErlangAtom
+                && "ok".equals(((OtpErlangAtom) t.elementAt(0)).atomValue());
+    }
+
+    // remove the least recently used entries
+    private static void prune(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null || files.length <= 2 * MAX_ENTRIES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(final File f1, final File f2) {
+                final long d = f1.lastModified() - f2.lastModified();
+                return d < 0 ? -1 : d > 0 ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < files.length - 2 * MAX_ENTRIES; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static File getDir() {
+        final ErlangPlugin plugin = ErlangPlugin.getDefault();
+        if (plugin == null) {
+            return null;
+        }
+        return plugin.getStateLocation().append("buildcache").toFile();
+    }
+
+    private static byte[] read(final File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buf = new byte[(int) file.length()];
+            int n = 0;
+            while (n < buf.length) {
+                final int r = in.read(buf, n, buf.length - n);
+                if (r < 0) {
+                    throw new IOException("unexpected end of file: " + file);
+                }
+                n += r;
+            }
+            return buf;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(final File file, final byte[] data)
+            throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
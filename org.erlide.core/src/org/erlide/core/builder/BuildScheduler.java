@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package org.erlide.core.builder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.IJobChangeEvent;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.jobs.JobChangeAdapter;
+import org.erlide.core.ErlangPlugin;
+import org.erlide.core.builder.internal.BuildNotifier;
+import org.erlide.core.builder.internal.IncludeDependencies;
+import org.erlide.core.erlang.ErlangCore;
+import org.erlide.jinterface.backend.Backend;
+import org.erlide.jinterface.util.ErlLogger;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+
+/**
+ * Builds a set of projects concurrently, each in its own job. A project is
+ * only started when the projects it references (and that are part of the
+ * same build) are done, and no more than a given number of projects are built
+ * at the same time. Canceling one of the jobs cancels the whole build.
+ */
+public class BuildScheduler {
+
+    private final Map<IProject, Set<IProject>> waitingFor = new HashMap<IProject, Set<IProject>>();
+    private final Map<IProject, List<IProject>> dependents = new HashMap<IProject, List<IProject>>();
+    private final LinkedList<IProject> ready = new LinkedList<IProject>();
+    private final int maxRunning;
+    private int running = 0;
+    private boolean canceled = false;
+
+    public BuildScheduler(final Collection<IProject> projects) {
+        this(projects, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BuildScheduler(final Collection<IProject> projects,
+            final int maxRunning) {
+        this.maxRunning = Math.max(1, maxRunning);
+        for (final IProject project : projects) {
+            waitingFor.put(project, new HashSet<IProject>());
+            dependents.put(project, new ArrayList<IProject>());
+        }
+        for (final IProject project : projects) {
+            try {
+                for (final IProject ref : project.getReferencedProjects()) {
+                    if (ref != project && waitingFor.containsKey(ref)) {
+                        waitingFor.get(project).add(ref);
+                        dependents.get(ref).add(project);
+                    }
+                }
+            } catch (final CoreException e) {
+                ErlLogger.warn(e);
+            }
+        }
+    }
+
+    /**
+     * Start building. Returns immediately, use {@link #join()} to wait for the
+     * build to finish.
+     */
+    public synchronized void schedule() {
+        for (final Map.Entry<IProject, Set<IProject>> e : waitingFor
+                .entrySet()) {
+            if (e.getValue().isEmpty()) {
+                ready.add(e.getKey());
+            }
+        }
+        for (final IProject p : ready) {
+            waitingFor.remove(p);
+        }
+        startReady();
+    }
+
+    public synchronized void cancel() {
+        canceled = true;
+        ready.clear();
+        waitingFor.clear();
+        Job.getJobManager().cancel(this);
+    }
+
+    /**
+     * Wait until all the projects are built, or the build is canceled.
+     */
+    public synchronized void join() throws InterruptedException {
+        while (running > 0 || !canceled
+                && (!ready.isEmpty() || !waitingFor.isEmpty())) {
+            wait();
+        }
+    }
+
+    // called with the lock held
+    private void startReady() {
+        if (canceled) {
+            return;
+        }
+        if (ready.isEmpty() && running == 0 && !waitingFor.isEmpty()) {
+            // there is a cycle among the remaining projects; build one of
+            // them anyway, like Eclipse does
+            final IProject p = waitingFor.keySet().iterator().next();
+            ErlLogger.warn("cycle in project references, building %s",
+                    p.getName());
+            waitingFor.remove(p);
+            ready.add(p);
+        }
+        while (!ready.isEmpty() && running < maxRunning) {
+            final IProject project = ready.removeFirst();
+            running++;
+            final ProjectBuildJob job = new ProjectBuildJob(project);
+            job.addJobChangeListener(new JobChangeAdapter() {
+                @Override
+                public void done(final IJobChangeEvent event) {
+                    finished(project, event.getResult());
+                }
+            });
+            job.schedule();
+        }
+    }
+
+    synchronized void finished(final IProject project, final IStatus result) {
+        running--;
+        notifyAll();
+        if (canceled) {
+            return;
+        }
+        if (result != null && result.getSeverity() == IStatus.CANCEL) {
+            cancel();
+            return;
+        }
+        final List<IProject> deps = dependents.get(project);
+        if (deps != null) {
+            for (final IProject dep : deps) {
+                final Set<IProject> waiting = waitingFor.get(dep);
+                if (waiting != null) {
+                    waiting.remove(project);
+                    if (waiting.isEmpty()) {
+                        waitingFor.remove(dep);
+                        ready.add(dep);
+                    }
+                }
+            }
+        }
+        startReady();
+    }
+
+    private final class ProjectBuildJob extends Job {
+        private final IProject project;
+
+        ProjectBuildJob(final IProject project) {
+            super("Building " + project.getName());
+            this.project = project;
+            setRule(project);
+            setPriority(Job.BUILD);
+        }
+
+        @Override
+        public boolean belongsTo(final Object family) {
+            return family == BuildScheduler.this;
+        }
+
+        @Override
+        protected IStatus run(final IProgressMonitor monitor) {
+            if (!project.isAccessible()) {
+                return Status.OK_STATUS;
+            }
+            final BuilderHelper helper = new BuilderHelper();
+            final BuildNotifier notifier = new BuildNotifier(monitor, project);
+            notifier.begin();
+            try {
+                MarkerUtils.deleteMarkers(project);
+                final Set<BuildResource> resources = helper
+                        .getAffectedResources(null, project,
+                                new NullProgressMonitor());
+                if (resources.isEmpty()) {
+                    return Status.OK_STATUS;
+                }
+                final Backend backend = ErlangCore.getBackendManager()
+                        .getBuildBackend(project);
+                if (backend == null) {
+                    final String message = "No backend with the required "
+                            + "version could be found. Can't build.";
+                    MarkerUtils.addProblemMarker(project, null, null, message,
+                            0, IMarker.SEVERITY_ERROR);
+                    return new Status(IStatus.ERROR, ErlangPlugin.PLUGIN_ID,
+                            message);
+                }
+                final OtpErlangList compilerOptions = CompilerPreferences
+                        .get(project);
+                notifier.setProgressPerCompilationUnit(1.0f / resources
+                        .size());
+                helper.compileResources(project, resources, backend,
+                        compilerOptions, false, notifier);
+                helper.refreshOutputDir(project);
+                helper.checkForClashes(backend, project);
+                return Status.OK_STATUS;
+            } catch (final OperationCanceledException e) {
+                return Status.CANCEL_STATUS;
+            } catch (final InterruptedException e) {
+                return Status.CANCEL_STATUS;
+            } catch (final Exception e) {
+                ErlLogger.error(e);
+                return new Status(IStatus.ERROR, ErlangPlugin.PLUGIN_ID,
+                        "Could not build " + project.getName(), e);
+            } finally {
+                notifier.done();
+                IncludeDependencies.get(project).save();
+            }
+        }
+    }
+}
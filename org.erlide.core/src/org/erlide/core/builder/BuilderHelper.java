@@ -13,8 +13,13 @@ package org.erlide.core.builder;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFolder;
@@ -34,14 +39,13 @@ import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.jobs.Job;
 import org.erlide.core.ErlangPlugin;
+import org.erlide.core.builder.internal.BuildNotifier;
 import org.erlide.core.builder.internal.BuilderVisitor;
+import org.erlide.core.builder.internal.IncludeDependencies;
 import org.erlide.core.erlang.ErlModelException;
 import org.erlide.core.erlang.ErlangCore;
-import org.erlide.core.erlang.IErlModule;
-import org.erlide.core.erlang.IErlModule.ModuleKind;
 import org.erlide.core.erlang.IErlProject;
 import org.erlide.core.erlang.IOldErlangProjectProperties;
-import org.erlide.core.erlang.util.ErlangIncludeFile;
 import org.erlide.core.erlang.util.PluginUtils;
 import org.erlide.jinterface.backend.Backend;
 import org.erlide.jinterface.rpc.RpcException;
@@ -71,6 +75,19 @@ public final class BuilderHelper {
                         .equals("true");
     }
 
+    /**
+     * How many compilations we keep going at the same time on the backend:
+     * enough to keep all its schedulers busy, but not so many that the
+     * results for the first files wait behind the whole project.
+     */
+    public int getMaxParallelCompilations(final Backend backend) {
+        final Integer max = Integer.getInteger("erlide.builder.parallel");
+        if (max != null && max.intValue() > 0) {
+            return max.intValue();
+        }
+        return 2 * Math.max(1, ErlideBuilder.getSchedulerCount(backend));
+    }
+
     public Collection<IPath> getAllIncludeDirs(final IProject project) {
         Collection<IPath> includeDirs = getIncludeDirs(project,
                 new ArrayList<IPath>());
@@ -129,24 +146,9 @@ public final class BuilderHelper {
     public void addDependents(final IResource resource,
             final IProject my_project, final Set<BuildResource> result)
             throws ErlModelException {
-        final IErlProject eprj = ErlangCore.getModel().findProject(my_project);
-        if (eprj != null) {
-            final Collection<IErlModule> ms = eprj.getModules();
-            for (final IErlModule m : ms) {
-                m.getScanner();
-                final Collection<ErlangIncludeFile> incs = m.getIncludedFiles();
-                for (final ErlangIncludeFile ifile : incs) {
-                    if (samePath(ifile.getFilename(), resource.getName())) {
-                        if (m.getModuleKind() == ModuleKind.ERL) {
-                            final BuildResource bres = new BuildResource(
-                                    m.getResource());
-                            result.add(bres);
-                        }
-                        break;
-                    }
-                }
-                m.disposeScanner();
-            }
+        for (final IResource r : IncludeDependencies.get(my_project)
+                .getDependents(resource)) {
+            result.add(new BuildResource(r));
         }
     }
 
@@ -263,25 +265,41 @@ public final class BuilderHelper {
             final IResource source, final IResource beam,
             boolean shouldCompile, final IErlProject eprj)
             throws ErlModelException {
-        final IErlModule m = eprj.getModule(source.getName());
-        if (m != null) {
-            m.getScanner();
-            final Collection<ErlangIncludeFile> incs = m.getIncludedFiles();
-            for (final ErlangIncludeFile ifile : incs) {
-                final IResource rifile = findResourceByName(project,
-                        ifile.getFilename());
-                if (rifile != null
-                        && rifile.getLocalTimeStamp() > beam
-                                .getLocalTimeStamp()) {
-                    shouldCompile = true;
-                    break;
-                }
+        final Collection<String> incs = IncludeDependencies.get(project)
+                .getIncludes(source);
+        for (final String inc : incs) {
+            final IResource rifile = findInclude(project, inc);
+            if (rifile != null
+                    && rifile.getLocalTimeStamp() > beam.getLocalTimeStamp()) {
+                shouldCompile = true;
+                break;
             }
-            m.disposeScanner();
         }
         return shouldCompile;
     }
 
+    /*
+     * Look in the include and source directories first, that's where include
+     * files usually are, before searching the whole project.
+     */
+    private IResource findInclude(final IProject project, final String name) {
+        final IOldErlangProjectProperties prefs = ErlangCore
+                .getProjectProperties(project);
+        for (final IPath dir : prefs.getIncludeDirs()) {
+            final IResource r = project.findMember(dir.append(name));
+            if (r != null) {
+                return r;
+            }
+        }
+        for (final IPath dir : prefs.getSourceDirs()) {
+            final IResource r = project.findMember(dir.append(name));
+            if (r != null) {
+                return r;
+            }
+        }
+        return findResourceByName(project, name);
+    }
+
     public static boolean samePath(final String p1, final String p2) {
         final boolean WINDOWS = java.io.File.separatorChar == '\\';
         if (WINDOWS) {
@@ -362,6 +380,70 @@ public final class BuilderHelper {
         }
     }
 
+    /*
+     * Start compilations up to the backend's capacity and process the
+     * results in the order they arrive, starting new compilations as the
+     * previous ones finish.
+     */
+    public void compileResources(final IProject project,
+            final Set<BuildResource> resourcesToBuild, final Backend backend,
+            final OtpErlangList compilerOptions, final boolean force,
+            final BuildNotifier notifier) throws InterruptedException {
+        final IOldErlangProjectProperties prefs = ErlangCore
+                .getProjectProperties(project);
+        final int maxRunning = getMaxParallelCompilations(backend);
+        final BlockingQueue<RpcFuture> completed = new LinkedBlockingQueue<RpcFuture>();
+        final Map<RpcFuture, IResource> running = new HashMap<RpcFuture, IResource>();
+        final Iterator<BuildResource> toStart = resourcesToBuild.iterator();
+
+        while (toStart.hasNext() || !running.isEmpty()) {
+            while (toStart.hasNext() && running.size() < maxRunning) {
+                notifier.checkCancel();
+                final BuildResource bres = toStart.next();
+                final IResource resource = bres.getResource();
+                // notifier.aboutToCompile(resource);
+                RpcFuture f = null;
+                if ("erl".equals(resource.getFileExtension())) {
+                    final String outputDir = prefs.getOutputDir().toString();
+                    f = startCompileErl(project, bres, outputDir, backend,
+                            compilerOptions, force);
+                } else if ("yrl".equals(resource.getFileExtension())) {
+                    f = startCompileYrl(project, resource, backend,
+                            compilerOptions);
+                } else {
+                    ErlLogger.warn("Don't know how to compile: %s",
+                            resource.getName());
+                }
+                if (f != null) {
+                    running.put(f, resource);
+                    f.setCompletionQueue(completed);
+                }
+            }
+            if (running.isEmpty()) {
+                continue;
+            }
+
+            notifier.checkCancel();
+            // don't wait forever, so that we notice if the build is canceled
+            final RpcFuture f = completed.poll(100, TimeUnit.MILLISECONDS);
+            if (f == null) {
+                continue;
+            }
+            final IResource resource = running.remove(f);
+            OtpErlangObject r;
+            try {
+                r = f.get();
+            } catch (final Exception e) {
+                ErlLogger.warn(e);
+                r = null;
+            }
+            BuildCache.getDefault().completed(f, r);
+            completeCompile(project, resource, r, backend,
+                    compilerOptions);
+            notifier.compiled(resource);
+        }
+    }
+
     public void completeCompile(final IProject project, final IResource source,
             final OtpErlangObject r, final Backend backend,
             final OtpErlangList compilerOptions) {
@@ -458,8 +540,27 @@ public final class BuilderHelper {
                 }
 
                 createTaskMarkers(project, res);
-                return ErlideBuilder.compileErl(backend, res.getLocation(),
-                        outputDir, includeDirs, compilerOptions);
+                final BuildCache cache = BuildCache.getDefault();
+                final BuildCache.Key key = cache.getKey(res, new File(
+                        outputDir, beamPath.lastSegment()), backend,
+                        compilerOptions, includeDirs);
+                if (key != null) {
+                    final RpcFuture cached = cache.restore(key, res.getName());
+                    if (cached != null) {
+                        if (isDebugging()) {
+                            ErlLogger.debug("restored %s from build cache",
+                                    res.getName());
+                        }
+                        return cached;
+                    }
+                }
+                final RpcFuture f = ErlideBuilder.compileErl(backend,
+                        res.getLocation(), outputDir, includeDirs,
+                        compilerOptions);
+                if (f != null && key != null) {
+                    cache.compiling(f, key);
+                }
+                return f;
 
             } else {
                 return null;
@@ -558,7 +659,9 @@ public final class BuilderHelper {
             return;
         }
         try {
-            completeCompile(project, resource.getResource(), res.get(), b,
+            final OtpErlangObject r = res.get();
+            BuildCache.getDefault().completed(res, r);
+            completeCompile(project, resource.getResource(), r, b,
                     compilerOptions);
         } catch (final RpcException e) {
             ErlLogger.warn(e);
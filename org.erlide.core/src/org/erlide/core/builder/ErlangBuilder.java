@@ -10,12 +10,8 @@
  *******************************************************************************/
 package org.erlide.core.builder;
 
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 import org.eclipse.core.resources.IFolder;
@@ -33,15 +29,14 @@ import org.eclipse.core.runtime.Path;
 import org.eclipse.osgi.util.NLS;
 import org.erlide.core.builder.internal.BuildNotifier;
 import org.erlide.core.builder.internal.BuilderMessages;
+import org.erlide.core.builder.internal.IncludeDependencies;
 import org.erlide.core.erlang.ErlangCore;
 import org.erlide.core.erlang.IOldErlangProjectProperties;
 import org.erlide.jinterface.backend.Backend;
 import org.erlide.jinterface.backend.BackendException;
-import org.erlide.jinterface.rpc.RpcFuture;
 import org.erlide.jinterface.util.ErlLogger;
 
 import com.ericsson.otp.erlang.OtpErlangList;
-import com.ericsson.otp.erlang.OtpErlangObject;
 import com.google.common.collect.Sets;
 
 public class ErlangBuilder extends IncrementalProjectBuilder {
@@ -154,59 +149,9 @@ public class ErlangBuilder extends IncrementalProjectBuilder {
                 }
 
                 notifier.setProgressPerCompilationUnit(1.0f / n);
-                final Map<RpcFuture, IResource> results = new HashMap<RpcFuture, IResource>();
-                for (final BuildResource bres : resourcesToBuild) {
-                    notifier.checkCancel();
-                    final IResource resource = bres.getResource();
-                    // notifier.aboutToCompile(resource);
-                    if ("erl".equals(resource.getFileExtension())) {
-                        final String outputDir = prefs.getOutputDir()
-                                .toString();
-                        final RpcFuture f = helper.startCompileErl(project,
-                                bres, outputDir, backend, compilerOptions,
-                                kind == IncrementalProjectBuilder.FULL_BUILD);
-                        if (f != null) {
-                            results.put(f, resource);
-                        }
-                    } else if ("yrl".equals(resource.getFileExtension())) {
-                        final RpcFuture f = helper.startCompileYrl(project,
-                                resource, backend, compilerOptions);
-                        if (f != null) {
-                            results.put(f, resource);
-                        }
-                    } else {
-                        ErlLogger.warn("Don't know how to compile: %s",
-                                resource.getName());
-                    }
-                }
-
-                final List<Entry<RpcFuture, IResource>> done = new ArrayList<Entry<RpcFuture, IResource>>();
-                final List<Entry<RpcFuture, IResource>> waiting = new ArrayList<Entry<RpcFuture, IResource>>(
-                        results.entrySet());
-
-                // TODO should use some kind of notification!
-                while (waiting.size() > 0) {
-                    for (final Entry<RpcFuture, IResource> result : waiting) {
-                        notifier.checkCancel();
-                        OtpErlangObject r;
-                        try {
-                            r = result.getKey().get(100);
-                        } catch (final Exception e) {
-                            r = null;
-                        }
-                        if (r != null) {
-                            final IResource resource = result.getValue();
-
-                            helper.completeCompile(project, resource, r,
-                                    backend, compilerOptions);
-                            notifier.compiled(resource);
-
-                            done.add(result);
-                        }
-                    }
-                    waiting.removeAll(done);
-                    done.clear();
-                }
+                helper.compileResources(project, resourcesToBuild, backend,
+                        compilerOptions,
+                        kind == IncrementalProjectBuilder.FULL_BUILD, notifier);
                 helper.refreshOutputDir(project);
 
                 try {
@@ -229,6 +174,7 @@ public class ErlangBuilder extends IncrementalProjectBuilder {
                     IMarker.SEVERITY_ERROR);
         } finally {
             cleanup();
+            IncludeDependencies.get(project).save();
             // if (BuilderHelper.isDebugging()) {
             ErlLogger.debug("Finished build of " + project.getName() //$NON-NLS-1$
                     + " took "
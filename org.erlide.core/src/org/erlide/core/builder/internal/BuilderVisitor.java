@@ -156,12 +156,16 @@ public class BuilderVisitor implements IResourceDeltaVisitor, IResourceVisitor {
         switch (kind) {
         case IResourceDelta.ADDED:
         case IResourceDelta.CHANGED:
+            IncludeDependencies.get(resource.getProject()).moduleChanged(
+                    resource);
             final BuildResource bres = new BuildResource(resource);
             result.add(bres);
             monitor.worked(1);
             break;
         case IResourceDelta.REMOVED:
             MarkerUtils.deleteMarkers(resource);
+            IncludeDependencies.get(resource.getProject()).moduleRemoved(
+                    resource);
 
             IPath beam = prefs.getOutputDir();
             final IPath module = beam.append(resource.getName())
@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package org.erlide.core.builder.internal;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+import org.erlide.core.ErlangPlugin;
+import org.erlide.core.erlang.ErlModelException;
+import org.erlide.core.erlang.ErlangCore;
+import org.erlide.core.erlang.IErlModule;
+import org.erlide.core.erlang.IErlModule.ModuleKind;
+import org.erlide.core.erlang.IErlProject;
+import org.erlide.core.erlang.util.ErlangIncludeFile;
+import org.erlide.jinterface.util.ErlLogger;
+
+/**
+ * Which modules of a project include which files, in both directions.
+ *
+ * The graph is kept up to date from the builder's resource deltas: a changed
+ * module is only scanned again the next time the graph is queried. It is saved
+ * in the plugin's state location, so that after a restart only the modules
+ * that changed meanwhile (according to their time stamp) need to be scanned.
+ * Include files are identified by their file name, without the directory.
+ */
+public final class IncludeDependencies {
+
+    private static final String VERSION = "erlide-deps 1";
+    private static final boolean WINDOWS = File.separatorChar == '\\';
+
+    private static final Map<String, IncludeDependencies> projects = new HashMap<String, IncludeDependencies>();
+
+    private static final class Module {
+        final long stamp;
+        final Set<String> includes;
+
+        Module(final long stamp, final Set<String> includes) {
+            this.stamp = stamp;
+            this.includes = includes;
+        }
+    }
+
+    private final IProject project;
+    // module path -> included files
+    private final Map<String, Module> modules = new HashMap<String, Module>();
+    // included file name (lower case on Windows) -> module paths
+    private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+    private final Set<String> stale = new HashSet<String>();
+    // are all the modules of the project known and checked?
+    private boolean complete = false;
+    private boolean dirty = false;
+
+    private IncludeDependencies(final IProject project) {
+        this.project = project;
+    }
+
+    public static IncludeDependencies get(final IProject project) {
+        synchronized (projects) {
+            IncludeDependencies deps = projects.get(project.getName());
+            if (deps == null) {
+                deps = new IncludeDependencies(project);
+                deps.load();
+                projects.put(project.getName(), deps);
+            }
+            return deps;
+        }
+    }
+
+    public synchronized void moduleChanged(final IResource module) {
+        stale.add(key(module));
+    }
+
+    public synchronized void moduleRemoved(final IResource module) {
+        final String path = key(module);
+        stale.remove(path);
+        remove(path);
+    }
+
+    /**
+     * @return the names of the files included by the module
+     */
+    public synchronized Collection<String> getIncludes(final IResource module) {
+        final String path = key(module);
+        Module m = modules.get(path);
+        if (m == null || stale.contains(path)
+                || m.stamp != module.getLocalTimeStamp()) {
+            stale.remove(path);
+            m = scan(module);
+        }
+        return m == null ? Collections.<String> emptySet() : Collections
+                .unmodifiableSet(m.includes);
+    }
+
+    /**
+     * @return the modules that include a file with the same name as the given
+     *         one
+     */
+    public synchronized Collection<IResource> getDependents(
+            final IResource include) throws ErlModelException {
+        refresh();
+        final Set<String> paths = dependents.get(includeKey(include.getName()));
+        if (paths == null) {
+            return Collections.emptyList();
+        }
+        final List<IResource> result = new ArrayList<IResource>(paths.size());
+        for (final String path : paths) {
+            final IResource r = project.findMember(path);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        final File file = getFile();
+        if (file == null) {
+            return;
+        }
+        try {
+            file.getParentFile().mkdirs();
+            final BufferedWriter out = new BufferedWriter(new FileWriter(file));
+            try {
+                out.write(VERSION);
+                out.newLine();
+                for (final Map.Entry<String, Module> e : modules.entrySet()) {
+                    out.write(e.getKey());
+                    out.write('\t');
+                    out.write(Long.toString(e.getValue().stamp));
+                    for (final String inc : e.getValue().includes) {
+                        out.write('\t');
+                        out.write(inc);
+                    }
+                    out.newLine();
+                }
+            } finally {
+                out.close();
+            }
+            dirty = false;
+        } catch (final IOException e) {
+            ErlLogger.warn(e);
+        }
+    }
+
+    private void load() {
+        final File file = getFile();
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try {
+            final BufferedReader in = new BufferedReader(new FileReader(file));
+            try {
+                if (!VERSION.equals(in.readLine())) {
+                    return;
+                }
+                String line;
+                while ((line = in.readLine()) != null) {
+                    final String[] fields = line.split("\t");
+                    if (fields.length < 2) {
+                        continue;
+                    }
+                    final Set<String> incs = new HashSet<String>();
+                    for (int i = 2; i < fields.length; i++) {
+                        incs.add(fields[i]);
+                    }
+                    put(fields[0], new Module(Long.parseLong(fields[1]), incs));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (final Exception e) {
+            ErlLogger.warn(e);
+            modules.clear();
+            dependents.clear();
+        }
+        dirty = false;
+    }
+
+    private File getFile() {
+        final ErlangPlugin plugin = ErlangPlugin.getDefault();
+        if (plugin == null) {
+            return null;
+        }
+        final IPath loc = plugin.getStateLocation().append("deps").append(
+                project.getName() + ".deps");
+        return loc.toFile();
+    }
+
+    /*
+     * Bring the graph up to date: scan the modules that changed since we last
+     * looked at them and, the first time, check the whole project.
+     */
+    private void refresh() throws ErlModelException {
+        if (!complete) {
+            final IErlProject eprj = ErlangCore.getModel().findProject(project);
+            if (eprj == null) {
+                return;
+            }
+            final Set<String> found = new HashSet<String>();
+            for (final IErlModule m : eprj.getModules()) {
+                if (m.getModuleKind() != ModuleKind.ERL) {
+                    continue;
+                }
+                final IResource r = m.getResource();
+                final String path = key(r);
+                found.add(path);
+                final Module old = modules.get(path);
+                if (old == null || old.stamp != r.getLocalTimeStamp()) {
+                    stale.add(path);
+                }
+            }
+            for (final String path : new ArrayList<String>(modules.keySet())) {
+                if (!found.contains(path)) {
+                    remove(path);
+                }
+            }
+            complete = true;
+        }
+        for (final String path : stale) {
+            final IResource r = project.findMember(path);
+            if (r != null) {
+                scan(r);
+            } else {
+                remove(path);
+            }
+        }
+        stale.clear();
+    }
+
+    private Module scan(final IResource resource) {
+        final String path = key(resource);
+        remove(path);
+        try {
+            final IErlProject eprj = ErlangCore.getModel().findProject(project);
+            if (eprj == null) {
+                return null;
+            }
+            final IErlModule m = eprj.getModule(resource.getName());
+            if (m == null) {
+                return null;
+            }
+            final Set<String> incs = new HashSet<String>();
+            m.getScanner();
+            try {
+                for (final ErlangIncludeFile ifile : m.getIncludedFiles()) {
+                    incs.add(baseName(ifile.getFilename()));
+                }
+            } finally {
+                m.disposeScanner();
+            }
+            final Module module = new Module(resource.getLocalTimeStamp(), incs);
+            put(path, module);
+            return module;
+        } catch (final ErlModelException e) {
+            ErlLogger.warn(e);
+            return null;
+        }
+    }
+
+    private void put(final String path, final Module module) {
+        modules.put(path, module);
+        for (final String inc : module.includes) {
+            Set<String> paths = dependents.get(includeKey(inc));
+            if (paths == null) {
+                paths = new HashSet<String>();
+                dependents.put(includeKey(inc), paths);
+            }
+            paths.add(path);
+        }
+        dirty = true;
+    }
+
+    private void remove(final String path) {
+        final Module module = modules.remove(path);
+        if (module == null) {
+            return;
+        }
+        for (final String inc : module.includes) {
+            final Set<String> paths = dependents.get(includeKey(inc));
+            if (paths != null) {
+                paths.remove(path);
+                if (paths.isEmpty()) {
+                    dependents.remove(includeKey(inc));
+                }
+            }
+        }
+        dirty = true;
+    }
+
+    private static String key(final IResource module) {
+        return module.getProjectRelativePath().toPortableString();
+    }
+
+    private static String baseName(final String name) {
+        final String base = new Path(name).lastSegment();
+        return base == null ? name : base;
+    }
+
+    private static String includeKey(final String name) {
+        final String base = baseName(name);
+        return WINDOWS ? base.toLowerCase() : base;
+    }
+}
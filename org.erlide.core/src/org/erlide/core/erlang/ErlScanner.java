@@ -10,17 +10,33 @@
  *******************************************************************************/
 package org.erlide.core.erlang;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.erlide.core.text.ErlangToolkit;
 import org.erlide.jinterface.backend.IDisposable;
 
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
 import erlang.ErlideScanner;
 
 /**
  * Erlang syntax scanner
+ * 
+ * Text changes are queued and sent to the backend in one message when the
+ * scanner is flushed, without waiting for an answer; reading from the scanner
+ * flushes it first.
  */
 public class ErlScanner implements IDisposable {
     private final String moduleName;
     private int refCount = 0;
+    private final List<OtpErlangObject> changes = new ArrayList<OtpErlangObject>();
+    // number of the last batch of changes sent
+    private int seq = 0;
 
     public ErlScanner(final IErlModule module, final String initialText,
             final String moduleFileName) {
@@ -46,10 +62,29 @@ public class ErlScanner implements IDisposable {
 
     public void replaceText(final int offset, final int removeLength,
             final String newText) {
-        ErlideScanner.replaceText(moduleName, offset, removeLength, newText);
+        synchronized (changes) {
+            changes.add(new OtpErlangTuple(new OtpErlangObject[] {
+                    new OtpErlangLong(offset), new OtpErlangLong(removeLength),
+                    new OtpErlangString(newText) }));
+        }
+    }
+
+    /**
+     * Send the queued changes, if any.
+     */
+    public void flush() {
+        synchronized (changes) {
+            if (changes.isEmpty()) {
+                return;
+            }
+            ErlideScanner.sendChanges(moduleName, ++seq, new OtpErlangList(
+                    changes.toArray(new OtpErlangObject[changes.size()])));
+            changes.clear();
+        }
     }
 
     public ErlToken getTokenAt(final int offset) {
+        flush();
         return ErlideScanner.getTokenAt(moduleName, offset);
     }
 
@@ -519,16 +519,17 @@ public abstract class ErlElement extends PlatformObject implements IErlElement,
 
     /**
      * Collection of handles of immediate children of this object. This is an
-     * empty array if this element has no children.
+     * empty array if this element has no children. Modules replace it with an
+     * unmodifiable list instead of changing it.
      */
-    protected List<IErlElement> fChildren = new ArrayList<IErlElement>();
+    protected volatile List<IErlElement> fChildren = new ArrayList<IErlElement>();
 
     /**
      * Is the structure of this element known
      * 
      * @see IErlElement#isStructureKnown()
      */
-    protected boolean structureKnown = false;
+    protected volatile boolean structureKnown = false;
 
     /**
      * Shared empty collection used for efficiency.
@@ -19,6 +19,15 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
@@ -52,6 +61,7 @@ import org.erlide.core.erlang.util.CoreUtil;
 import org.erlide.core.erlang.util.ElementChangedEvent;
 import org.erlide.core.erlang.util.ErlideUtil;
 import org.erlide.core.erlang.util.IElementChangedListener;
+import org.erlide.core.erlang.util.ModuleIndex;
 import org.erlide.jinterface.util.ErlLogger;
 
 /**
@@ -87,8 +97,28 @@ public final class ErlModelManager implements IErlModelManager {
      * Queue of deltas created explicitly by the model that have yet to be
      * fired.
      */
-    private final List<IErlElementDelta> erlModelDeltas = Collections
-            .synchronizedList(new ArrayList<IErlElementDelta>());
+    private final Queue<IErlElementDelta> erlModelDeltas = new ConcurrentLinkedQueue<IErlElementDelta>();
+
+    /**
+     * How long (in ms) to wait after a delta is fired before notifying the
+     * listeners, so that the deltas fired meanwhile are delivered together.
+     */
+    private static final long NOTIFY_DELAY = Long.getLong(
+            "erlide.model.notify.delay", 50).longValue();
+
+    /**
+     * The event types fired since the last notification.
+     */
+    private final Set<Integer> pendingEvents = new HashSet<Integer>();
+    private final AtomicBoolean notifyScheduled = new AtomicBoolean(false);
+    private final ScheduledExecutorService notifier = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "Erlang model notifier");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
 
     public static final int DEFAULT_CHANGE_EVENT = 0; // must not collide with
 
@@ -102,7 +132,6 @@ public final class ErlModelManager implements IErlModelManager {
      */
     public void registerModelDelta(final IErlElementDelta delta) {
         erlModelDeltas.add(delta);
-        // TODO
     }
 
     public static boolean verbose = Boolean.getBoolean("erlide.model.verbose");
@@ -116,6 +145,7 @@ public final class ErlModelManager implements IErlModelManager {
      * Listeners for element changes
      */
     protected List<IElementChangedListener> elementChangedListeners = new ArrayList<IElementChangedListener>();
+    private final List<Integer> elementChangedListenerMasks = new ArrayList<Integer>();
 
     /**
      * Returns the Erlang element corresponding to the given resource, or
@@ -168,6 +198,9 @@ public final class ErlModelManager implements IErlModelManager {
         if (e != null) {
             final IParent p = (IParent) e.getParent();
             p.removeChild(e);
+            if (e instanceof ErlModule) {
+                ModuleCache.getDefault().removed((ErlModule) e);
+            }
         }
         // TODO should we make Erlidemodelevents and fire them?
     }
@@ -423,6 +456,20 @@ public final class ErlModelManager implements IErlModelManager {
             for (final IResource rsrc : removed) {
                 remove(rsrc);
             }
+            // after the model is updated, so that it is indexed again from
+            // the new state
+            final ModuleIndex index = ModuleIndex.getDefault();
+            for (final IResource rsrc : added) {
+                index.projectChanged(rsrc.getProject());
+            }
+            for (final IResource rsrc : changed) {
+                if (rsrc.getType() == IResource.PROJECT) {
+                    index.projectChanged((IProject) rsrc);
+                }
+            }
+            for (final IResource rsrc : removed) {
+                index.projectChanged(rsrc.getProject());
+            }
         }
     }
 
@@ -598,6 +645,7 @@ public final class ErlModelManager implements IErlModelManager {
     public void shutdown() {
         // Note: no need to close the Erlang model as this just removes Erlang
         // element infos from the Erlang model cache
+        notifier.shutdown();
     }
 
     /**
@@ -630,7 +678,15 @@ public final class ErlModelManager implements IErlModelManager {
      */
     public void addElementChangedListener(
             final IElementChangedListener listener, final int eventMask) {
-        // getDefault().addElementChangedListener(listener, eventMask);
+        synchronized (elementChangedListeners) {
+            final int i = elementChangedListeners.indexOf(listener);
+            if (i >= 0) {
+                elementChangedListenerMasks.set(i, eventMask);
+            } else {
+                elementChangedListeners.add(listener);
+                elementChangedListenerMasks.add(eventMask);
+            }
+        }
     }
 
     /**
@@ -642,7 +698,13 @@ public final class ErlModelManager implements IErlModelManager {
      */
     public void removeElementChangedListener(
             final IElementChangedListener listener) {
-        // getDefault().removeElementChangedListener(listener);
+        synchronized (elementChangedListeners) {
+            final int i = elementChangedListeners.indexOf(listener);
+            if (i >= 0) {
+                elementChangedListeners.remove(i);
+                elementChangedListenerMasks.remove(i);
+            }
+        }
     }
 
     /**
@@ -701,60 +763,81 @@ public final class ErlModelManager implements IErlModelManager {
     // return create(res, null);
     // }
 
+    /**
+     * Fire the registered model deltas. The listeners are not notified at
+     * once, but shortly after and on the notifier thread, together with the
+     * deltas fired meanwhile, merged into a single delta. If the firing mode
+     * has been turned off, this has no effect.
+     */
     public void fire(final int eventType) {
-        fire(null, eventType);
+        if (!fFire) {
+            return;
+        }
+        final int type = eventType == DEFAULT_CHANGE_EVENT ? ElementChangedEvent.POST_CHANGE
+                : eventType;
+        synchronized (pendingEvents) {
+            pendingEvents.add(type);
+        }
+        if (notifyScheduled.compareAndSet(false, true)) {
+            try {
+                notifier.schedule(new Runnable() {
+                    public void run() {
+                        notifyScheduled.set(false);
+                        firePending();
+                    }
+                }, NOTIFY_DELAY, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                // shutting down
+                notifyScheduled.set(false);
+            }
+        }
     }
 
     /**
-     * Fire Model deltas, flushing them after the fact. If the firing mode has
-     * been turned off, this has no effect.
+     * Notify the listeners of all the deltas fired since the last time.
      */
-    private void fire(final IErlElementDelta customDeltas, final int eventType) {
-        if (fFire) {
-            IErlElementDelta deltaToNotify;
-            if (customDeltas == null) {
-                deltaToNotify = mergeDeltas(erlModelDeltas);
-            } else {
-                deltaToNotify = customDeltas;
+    private void firePending() {
+        final Set<Integer> events;
+        synchronized (pendingEvents) {
+            if (pendingEvents.isEmpty()) {
+                return;
             }
-
-            IElementChangedListener[] listeners;
-            int listenerCount;
-            int[] listenerMask;
-            // Notification
-            synchronized (elementChangedListeners) {
-                listeners = new IElementChangedListener[elementChangedListeners
-                        .size()];
-                elementChangedListeners.toArray(listeners);
-                listenerCount = listeners.length;
-                listenerMask = null;
+            events = new HashSet<Integer>(pendingEvents);
+            pendingEvents.clear();
+        }
+        final List<IErlElementDelta> deltas = new ArrayList<IErlElementDelta>();
+        IErlElementDelta delta;
+        while ((delta = erlModelDeltas.poll()) != null) {
+            deltas.add(delta);
+        }
+        final IErlElementDelta deltaToNotify = mergeDeltas(deltas);
+
+        IElementChangedListener[] listeners;
+        int listenerCount;
+        int[] listenerMask;
+        // Notification
+        synchronized (elementChangedListeners) {
+            listeners = new IElementChangedListener[elementChangedListeners
+                    .size()];
+            elementChangedListeners.toArray(listeners);
+            listenerCount = listeners.length;
+            listenerMask = new int[listenerCount];
+            for (int i = 0; i < listenerCount; i++) {
+                listenerMask[i] = elementChangedListenerMasks.get(i);
             }
+        }
 
-            switch (eventType) {
-            case DEFAULT_CHANGE_EVENT:
-                // firePreAutoBuildDelta(deltaToNotify, listeners, listenerMask,
-                // listenerCount);
-                firePostChangeDelta(deltaToNotify, listeners, listenerMask,
-                        listenerCount);
-                fireReconcileDelta(listeners, listenerMask, listenerCount);
-                break;
-            // case ElementChangedEvent.PRE_AUTO_BUILD :
-            // firePreAutoBuildDelta(deltaToNotify, listeners, listenerMask,
-            // listenerCount);
-            // break;
-            case ElementChangedEvent.POST_CHANGE:
-                firePostChangeDelta(deltaToNotify, listeners, listenerMask,
-                        listenerCount);
-                fireReconcileDelta(listeners, listenerMask, listenerCount);
-                break;
-            case ElementChangedEvent.POST_RECONCILE:
-                fireReconcileDelta(listeners, listenerMask, listenerCount);
-                break;
-            case ElementChangedEvent.POST_SHIFT:
-                fireShiftEvent(deltaToNotify, listeners, listenerMask,
-                        listenerCount);
-                return;
-            }
+        if (events.contains(ElementChangedEvent.POST_CHANGE)) {
+            firePostChangeDelta(deltaToNotify, listeners, listenerMask,
+                    listenerCount);
+        }
+        if (events.contains(ElementChangedEvent.POST_CHANGE)
+                || events.contains(ElementChangedEvent.POST_RECONCILE)) {
+            fireReconcileDelta(listeners, listenerMask, listenerCount);
+        }
+        if (events.contains(ElementChangedEvent.POST_SHIFT)) {
+            fireShiftEvent(deltaToNotify, listeners, listenerMask,
+                    listenerCount);
         }
     }
 
@@ -770,10 +853,6 @@ public final class ErlModelManager implements IErlModelManager {
                     .println(deltaToNotify == null ? "<NONE>" : deltaToNotify.toString()); //$NON-NLS-1$
         }
         if (deltaToNotify != null) {
-            // flush now so as to keep listener reactions to post their own
-            // deltas for
-            // subsequent iteration
-            flush();
             notifyListeners(deltaToNotify, ElementChangedEvent.POST_CHANGE,
                     listeners, listenerMask, listenerCount);
         }
@@ -811,7 +890,6 @@ public final class ErlModelManager implements IErlModelManager {
                     .println(deltaToNotify == null ? "<NONE>" : deltaToNotify.toString()); //$NON-NLS-1$
         }
         if (deltaToNotify != null) {
-            flush();
             notifyListeners(deltaToNotify, ElementChangedEvent.POST_SHIFT,
                     listeners, listenerMask, listenerCount);
         }
@@ -919,24 +997,28 @@ public final class ErlModelManager implements IErlModelManager {
     public IErlModule getModuleFromFile(final IErlElement parent,
             final String name, final String initialText, final String path,
             final String key) {
-        IErlModule m = moduleMap.get(key);
-        if (m == null) {
-            final IErlElement parent2 = parent == null ? getErlangModel()
-                    : parent;
-            m = new ErlModule(parent2, name, initialText, null, path);
-            if (key != null) {
-                moduleMap.put(key, m);
-                mapModule.put(m, key);
+        synchronized (moduleMap) {
+            IErlModule m = moduleMap.get(key);
+            if (m == null) {
+                final IErlElement parent2 = parent == null ? getErlangModel()
+                        : parent;
+                m = new ErlModule(parent2, name, initialText, null, path);
+                if (key != null) {
+                    moduleMap.put(key, m);
+                    mapModule.put(m, key);
+                }
             }
+            return m;
         }
-        return m;
     }
 
     public void removeModule(final IErlModule module) {
-        final Object key = mapModule.get(module);
-        if (key != null) {
-            mapModule.remove(module);
-            moduleMap.remove(key);
+        synchronized (moduleMap) {
+            final Object key = mapModule.get(module);
+            if (key != null) {
+                mapModule.remove(module);
+                moduleMap.remove(key);
+            }
         }
     }
 
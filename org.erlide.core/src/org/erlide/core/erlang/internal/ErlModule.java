@@ -11,9 +11,13 @@
 package org.erlide.core.erlang.internal;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.eclipse.core.resources.IFile;
@@ -36,27 +40,36 @@ import org.erlide.core.erlang.IErlModule;
 import org.erlide.core.erlang.IErlPreprocessorDef;
 import org.erlide.core.erlang.IErlProject;
 import org.erlide.core.erlang.IErlTypespec;
-import org.erlide.core.erlang.IErlangFirstThat;
 import org.erlide.core.erlang.ISourceRange;
-import org.erlide.core.erlang.ISourceReference;
 import org.erlide.core.erlang.SourceRange;
+import org.erlide.core.erlang.util.CoreUtil;
 import org.erlide.core.erlang.util.ErlangFunction;
 import org.erlide.core.erlang.util.ErlangIncludeFile;
 import org.erlide.core.erlang.util.ErlideUtil;
+import org.erlide.jinterface.backend.util.Util;
 import org.erlide.jinterface.util.ErlLogger;
 
 import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
 
 public class ErlModule extends Openable implements IErlModule {
 
-    private long timestamp = IResource.NULL_STAMP;
-    private final List<IErlComment> comments = new ArrayList<IErlComment>(0);
+    private volatile long timestamp = IResource.NULL_STAMP;
+    private volatile Snapshot snapshot;
     private String initialText;
     private ErlScanner scanner = null;
     private IFile fFile;
     private boolean parsed = false;
     private boolean updateCaches = true;
+    // held while parsing or changing the text, so that readers (who only
+    // look at the published snapshot) never wait for a parse
+    private final Object parseLock = new Object();
+    // the structure was dropped by the module cache
+    private volatile boolean evicted = false;
+    private volatile long lastAccess = 0;
+    // number of editors that have the module open
+    private int editors = 0;
 
     private final ModuleKind moduleKind;
     protected final String path;
@@ -72,11 +85,170 @@ public class ErlModule extends Openable implements IErlModule {
                     + " " + moduleKind);
         }
         this.path = path;
+        publish(new Snapshot(new ArrayList<IErlElement>(0),
+                new ArrayList<IErlComment>(0),
+                new IdentityHashMap<IErlElement, OtpErlangObject>()));
     }
 
+    /**
+     * The members and comments of the module, with what is derived from them.
+     * A snapshot is never modified: changes publish a new one, so that readers
+     * see a consistent state without locking.
+     */
+    private static final class Snapshot {
+        final List<IErlElement> members;
+        final List<IErlComment> comments;
+        final Map<IErlElement, OtpErlangObject> contents;
+        final SourceIndex offsetIndex;
+        final SourceIndex lineIndex;
+
+        Snapshot(final List<IErlElement> members,
+                final List<IErlComment> comments,
+                final Map<IErlElement, OtpErlangObject> contents) {
+            this.members = Collections
+                    .unmodifiableList(new ArrayList<IErlElement>(members));
+            this.comments = Collections
+                    .unmodifiableList(new ArrayList<IErlComment>(comments));
+            this.contents = Collections
+                    .unmodifiableMap(new IdentityHashMap<IErlElement, OtpErlangObject>(
+                            contents));
+            offsetIndex = SourceIndex.byOffset(this.members);
+            lineIndex = SourceIndex.byLine(this.members);
+        }
+    }
+
+    private void publish(final Snapshot s) {
+        fChildren = s.members;
+        snapshot = s;
+    }
+
+    /**
+     * Only waits for a parse in progress if the structure isn't known.
+     */
     @Override
-    protected synchronized boolean buildStructure(final IProgressMonitor pm)
+    public void open(final IProgressMonitor monitor) throws ErlModelException {
+        lastAccess = System.currentTimeMillis();
+        if (isStructureKnown()) {
+            ModuleCache.getDefault().hit();
+            return;
+        }
+        synchronized (parseLock) {
+            super.open(monitor);
+        }
+        ModuleCache.getDefault().evictIfNeeded();
+    }
+
+    @Override
+    protected boolean buildStructure(final IProgressMonitor pm)
             throws ErlModelException {
+        synchronized (parseLock) {
+            final boolean rebuild = evicted;
+            evicted = false;
+            final long start = System.currentTimeMillis();
+            final boolean result = doBuildStructure();
+            ModuleCache.getDefault().built(this, rebuild,
+                    System.currentTimeMillis() - start);
+            return result;
+        }
+    }
+
+    /**
+     * Build the structure from a parse result that was fetched in advance,
+     * without creating a scanner. Does nothing if the structure is already
+     * known.
+     * 
+     * @param res
+     *            the cached parse result, as returned by erlide_noparse
+     * @return true if the structure was built
+     */
+    boolean warmUp(final OtpErlangTuple res) {
+        synchronized (parseLock) {
+            if (isStructureKnown()) {
+                return false;
+            }
+            final boolean rebuild = evicted;
+            evicted = false;
+            final long start = System.currentTimeMillis();
+            if (!ErlParser.parse(this, res)) {
+                return false;
+            }
+            final IErlModel model = getModel();
+            if (model != null) {
+                model.notifyChange(this);
+            }
+            final IResource r = getResource();
+            if (r instanceof IFile) {
+                timestamp = ((IFile) r).getLocalTimeStamp();
+            } else {
+                timestamp = IResource.NULL_STAMP;
+            }
+            // as if it was opened now, so that it isn't evicted first
+            lastAccess = System.currentTimeMillis();
+            // the next parse is a reparse of the scanner's text, not the
+            // cached initial parse of the file
+            parsed = true;
+            setStructureKnown(true);
+            ModuleCache.getDefault().built(this, rebuild,
+                    System.currentTimeMillis() - start);
+        }
+        ModuleCache.getDefault().evictIfNeeded();
+        return true;
+    }
+
+    /**
+     * Drop the structure of the module, if it isn't being edited and can be
+     * built again from the file.
+     * 
+     * @return true if the module was evicted
+     */
+    boolean evict() {
+        synchronized (parseLock) {
+            if (editors > 0 || scanner != null || evicted) {
+                return false;
+            }
+            if (fFile == null && (path == null || path.length() == 0)) {
+                return false;
+            }
+            publish(new Snapshot(new ArrayList<IErlElement>(0),
+                    new ArrayList<IErlComment>(0),
+                    new IdentityHashMap<IErlElement, OtpErlangObject>()));
+            initialText = null;
+            parsed = false;
+            setStructureKnown(false);
+            evicted = true;
+            return true;
+        }
+    }
+
+    /**
+     * @return a rough estimate of the memory used by the module, in bytes
+     */
+    long estimateSize() {
+        final Snapshot s = snapshot;
+        final String text = initialText;
+        return 2L * (text == null ? 0 : text.length()) + 256L
+                * (s.members.size() + s.comments.size());
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Build the structure again if it was evicted.
+     */
+    private void touch() {
+        lastAccess = System.currentTimeMillis();
+        if (evicted) {
+            try {
+                open(null);
+            } catch (final ErlModelException e) {
+                ErlLogger.warn(e);
+            }
+        }
+    }
+
+    private boolean doBuildStructure() {
         final String path = getFilePath();
         if (scanner == null) {
             parsed = false;
@@ -87,6 +259,9 @@ public class ErlModule extends Openable implements IErlModule {
             // is one
             getScanner();
         }
+        if (scanner != null) {
+            scanner.flush();
+        }
         parsed = ErlParser.parse(this, initialParse, path, updateCaches
                 && useCaches());
         final IErlModel model = getModel();
@@ -128,38 +303,38 @@ public class ErlModule extends Openable implements IErlModule {
 
     public IErlElement getElementAt(final int position)
             throws ErlModelException {
-        return getModel().innermostThat(this, new IErlangFirstThat() {
-            public boolean firstThat(final IErlElement e) {
-                try {
-                    if (e instanceof ISourceReference) {
-                        final ISourceReference ch = (ISourceReference) e;
-                        ISourceRange r;
-                        r = ch.getSourceRange();
-                        if (r != null && r.hasPosition(position)) {
-                            return true;
-                        }
-                    }
-                } catch (final ErlModelException e1) {
-                    ErlLogger.error(e1);
-                }
-                return false;
-            }
-        });
+        touch();
+        return snapshot.offsetIndex.find(position);
     }
 
     public IErlElement getElementAtLine(final int lineNumber) {
-        return getModel().innermostThat(this, new IErlangFirstThat() {
-            public boolean firstThat(final IErlElement e) {
-                if (e instanceof ISourceReference) {
-                    final ISourceReference sr = (ISourceReference) e;
-                    if (sr.getLineStart() <= lineNumber
-                            && sr.getLineEnd() >= lineNumber) {
-                        return true;
-                    }
-                }
-                return false;
-            }
-        });
+        touch();
+        return snapshot.lineIndex.find(lineNumber);
+    }
+
+    @Override
+    public List<IErlElement> getChildren() throws ErlModelException {
+        touch();
+        return fChildren;
+    }
+
+    @Override
+    public int getChildCount() {
+        touch();
+        return fChildren.size();
+    }
+
+    @Override
+    public List<IErlElement> getChildrenOfKind(final Kind kind)
+            throws ErlModelException {
+        touch();
+        return super.getChildrenOfKind(kind);
+    }
+
+    @Override
+    public boolean hasChildrenOfKind(final Kind kind) {
+        touch();
+        return super.hasChildrenOfKind(kind);
     }
 
     public ModuleKind getModuleKind() {
@@ -216,23 +391,88 @@ public class ErlModule extends Openable implements IErlModule {
     }
 
     public void addComment(final IErlComment c) {
-        comments.add(c);
+        synchronized (parseLock) {
+            final Snapshot s = snapshot;
+            final List<IErlComment> newComments = new ArrayList<IErlComment>(
+                    s.comments);
+            newComments.add(c);
+            publish(new Snapshot(s.members, newComments, s.contents));
+        }
+    }
+
+    @Override
+    public void addChild(final IErlElement child) {
+        synchronized (parseLock) {
+            final Snapshot s = snapshot;
+            final List<IErlElement> members = new ArrayList<IErlElement>(
+                    s.members);
+            members.add(child);
+            publish(new Snapshot(members, s.comments, s.contents));
+        }
+    }
+
+    @Override
+    public void removeChild(final IErlElement child) {
+        synchronized (parseLock) {
+            final Snapshot s = snapshot;
+            final List<IErlElement> members = new ArrayList<IErlElement>(
+                    s.members);
+            members.remove(child);
+            publish(new Snapshot(members, s.comments, s.contents));
+        }
+    }
+
+    @Override
+    public void setChildren(final Collection<? extends IErlElement> c) {
+        synchronized (parseLock) {
+            final Snapshot s = snapshot;
+            publish(new Snapshot(new ArrayList<IErlElement>(c), s.comments,
+                    s.contents));
+        }
+    }
+
+    @Override
+    public void setChildren(final IErlElement[] children) {
+        setChildren(Arrays.asList(children));
     }
 
     public void removeChildren() {
-        fChildren.clear();
-        comments.clear();
+        setMembers(new ArrayList<IErlElement>(0),
+                new ArrayList<IErlComment>(0),
+                new IdentityHashMap<IErlElement, OtpErlangObject>());
+    }
+
+    /**
+     * Replace the members and comments, remembering the contents of the forms
+     * they were created from.
+     */
+    void setMembers(final List<IErlElement> members,
+            final List<IErlComment> newComments,
+            final Map<IErlElement, OtpErlangObject> newContents) {
+        synchronized (parseLock) {
+            publish(new Snapshot(members, newComments, newContents));
+        }
+    }
+
+    /**
+     * @return the contents (without positions) of the forms the members and
+     *         comments were created from
+     */
+    Map<IErlElement, OtpErlangObject> getContents() {
+        return snapshot.contents;
     }
 
-    public synchronized long getTimestamp() {
+    public long getTimestamp() {
         return timestamp;
     }
 
     public Collection<IErlComment> getComments() {
-        return comments;
+        touch();
+        return snapshot.comments;
     }
 
     public IErlImport findImport(final ErlangFunction function) {
+        touch();
         for (final IErlElement m : fChildren) {
             if (m instanceof IErlImport) {
                 final IErlImport ei = (IErlImport) m;
@@ -245,6 +485,7 @@ public class ErlModule extends Openable implements IErlModule {
     }
 
     public IErlExport findExport(final ErlangFunction function) {
+        touch();
         for (final IErlElement m : fChildren) {
             if (m instanceof IErlExport) {
                 final IErlExport ei = (IErlExport) m;
@@ -257,6 +498,7 @@ public class ErlModule extends Openable implements IErlModule {
     }
 
     public IErlFunction findFunction(final ErlangFunction function) {
+        touch();
         for (final IErlElement fun : fChildren) {
             if (fun instanceof IErlFunction) {
                 final IErlFunction f = (IErlFunction) fun;
@@ -270,6 +512,7 @@ public class ErlModule extends Openable implements IErlModule {
     }
 
     public IErlTypespec findTypespec(final String typeName) {
+        touch();
         for (final IErlElement child : fChildren) {
             if (child instanceof IErlTypespec) {
                 final IErlTypespec typespec = (IErlTypespec) child;
@@ -283,6 +526,7 @@ public class ErlModule extends Openable implements IErlModule {
 
     public IErlPreprocessorDef findPreprocessorDef(final String definedName,
             final Kind type) {
+        touch();
         for (final IErlElement m : fChildren) {
             if (m instanceof IErlPreprocessorDef) {
                 final IErlPreprocessorDef pd = (IErlPreprocessorDef) m;
@@ -296,6 +540,7 @@ public class ErlModule extends Openable implements IErlModule {
     }
 
     public Collection<IErlPreprocessorDef> getPreprocessorDefs(final Kind type) {
+        touch();
         final List<IErlPreprocessorDef> res = new ArrayList<IErlPreprocessorDef>();
         for (final IErlElement m : fChildren) {
             if (m instanceof IErlPreprocessorDef) {
@@ -310,6 +555,7 @@ public class ErlModule extends Openable implements IErlModule {
 
     public Collection<ErlangIncludeFile> getIncludedFiles()
             throws ErlModelException {
+        lastAccess = System.currentTimeMillis();
         if (!isStructureKnown()) {
             open(null);
         }
@@ -332,6 +578,7 @@ public class ErlModule extends Openable implements IErlModule {
     }
 
     public Collection<IErlImport> getImports() {
+        touch();
         final List<IErlImport> r = new ArrayList<IErlImport>();
         for (final IErlElement m : fChildren) {
             if (m instanceof IErlImport) {
@@ -342,10 +589,12 @@ public class ErlModule extends Openable implements IErlModule {
     }
 
     public void getScanner() {
-        if (scanner == null) {
-            scanner = getNewScanner();
+        synchronized (parseLock) {
+            if (scanner == null) {
+                scanner = getNewScanner();
+            }
+            scanner.addRef();
         }
-        scanner.addRef();
     }
 
     private ErlScanner getNewScanner() {
@@ -353,26 +602,40 @@ public class ErlModule extends Openable implements IErlModule {
         if (path == null) {
             return null;
         }
+        if (initialText == null) {
+            // dropped by the module cache
+            try {
+                if (fFile != null) {
+                    initialText = new String(
+                            CoreUtil.getResourceContentsAsCharArray(fFile));
+                } else {
+                    initialText = new String(Util.getFileCharContent(path,
+                            "UTF8"));
+                }
+            } catch (final Exception e) {
+                initialText = "";
+            }
+        }
         return new ErlScanner(this, initialText, path);
     }
 
-    public synchronized void reconcileText(final int offset,
-            final int removeLength, final String newText,
-            final IProgressMonitor mon) {
-        if (scanner == null) {
-            // There are two places that we make the initial scanner... this
-            // is one too
-            getScanner();
-        }
-        getScanner();
-        if (scanner != null) {
-            scanner.replaceText(offset, removeLength, newText);
-        }
-        if (mon != null) {
-            mon.worked(1);
+    public void reconcileText(final int offset, final int removeLength,
+            final String newText, final IProgressMonitor mon) {
+        synchronized (parseLock) {
+            if (scanner == null) {
+                // There are two places that we make the initial scanner...
+                // this is one too; its reference is kept while editing
+                getScanner();
+            }
+            if (scanner != null) {
+                // only queued, sent by postReconcile or the next parse
+                scanner.replaceText(offset, removeLength, newText);
+            }
+            if (mon != null) {
+                mon.worked(1);
+            }
+            setStructureKnown(false);
         }
-        setStructureKnown(false);
-        disposeScanner();
     }
 
     /*
@@ -382,7 +645,13 @@ public class ErlModule extends Openable implements IErlModule {
      * org.erlide.core.erlang.IErlModule#postReconcile(org.eclipse.core.runtime
      * .IProgressMonitor)
      */
-    public synchronized void postReconcile(final IProgressMonitor mon) {
+    public void postReconcile(final IProgressMonitor mon) {
+        synchronized (parseLock) {
+            // all the changes of this reconcile in one message
+            if (scanner != null) {
+                scanner.flush();
+            }
+        }
         try {
             open(mon);
         } catch (final ErlModelException e) {
@@ -399,14 +668,21 @@ public class ErlModule extends Openable implements IErlModule {
 
     }
 
-    public synchronized void initialReconcile() {
-        // currently unused
+    public void initialReconcile() {
         // Note that the ErlReconciler doesn't send the first full-text
         // reconcile that the built-in reconciler does
+        // an open editor keeps the module out of the cache's reach
+        synchronized (parseLock) {
+            editors++;
+        }
     }
 
-    public synchronized void finalReconcile() {
-        // currently unused
+    public void finalReconcile() {
+        synchronized (parseLock) {
+            if (editors > 0) {
+                editors--;
+            }
+        }
     }
 
     public String getModuleName() {
@@ -414,15 +690,17 @@ public class ErlModule extends Openable implements IErlModule {
     }
 
     public void disposeScanner() {
-        if (scanner == null) {
-            return;
-        }
-        final ErlScanner s = scanner;
-        if (s.willDispose()) {
-            scanner = null;
+        synchronized (parseLock) {
+            if (scanner == null) {
+                return;
+            }
+            final ErlScanner s = scanner;
+            if (s.willDispose()) {
+                scanner = null;
+            }
+            s.dispose();
+            setStructureKnown(false);
         }
-        s.dispose();
-        setStructureKnown(false);
     }
 
     // public synchronized void disposeParser() {
@@ -449,6 +727,7 @@ public class ErlModule extends Openable implements IErlModule {
     public void dispose() {
         disposeScanner();
         ErlangCore.getModelManager().removeModule(this);
+        ModuleCache.getDefault().removed(this);
     }
 
     public Set<IErlModule> getDirectDependents() throws ErlModelException {
@@ -495,19 +774,21 @@ public class ErlModule extends Openable implements IErlModule {
         }
     }
 
-    public synchronized void resetAndCacheScannerAndParser(final String newText) {
-        while (scanner != null) {
-            disposeScanner();
-        }
-        initialText = newText;
-        parsed = false;
-        updateCaches = true;
-        setStructureKnown(false);
-        try {
-            final boolean built = buildStructure(null);
-            setStructureKnown(built);
-        } catch (final ErlModelException e) {
-            e.printStackTrace();
+    public void resetAndCacheScannerAndParser(final String newText) {
+        synchronized (parseLock) {
+            while (scanner != null) {
+                disposeScanner();
+            }
+            initialText = newText;
+            parsed = false;
+            updateCaches = true;
+            setStructureKnown(false);
+            try {
+                final boolean built = buildStructure(null);
+                setStructureKnown(built);
+            } catch (final ErlModelException e) {
+                e.printStackTrace();
+            }
         }
     }
 
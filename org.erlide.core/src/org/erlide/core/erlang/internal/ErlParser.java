@@ -10,16 +10,26 @@
  *******************************************************************************/
 package org.erlide.core.erlang.internal;
 
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 
 import org.erlide.core.ErlangPlugin;
+import org.erlide.core.erlang.ErlElementDelta;
 import org.erlide.core.erlang.ErlangCore;
 import org.erlide.core.erlang.IErlAttribute;
 import org.erlide.core.erlang.IErlComment;
+import org.erlide.core.erlang.IErlElement;
+import org.erlide.core.erlang.IErlElementDelta;
+import org.erlide.core.erlang.IErlFunction;
 import org.erlide.core.erlang.IErlImport;
 import org.erlide.core.erlang.IErlMember;
+import org.erlide.core.erlang.IErlModelManager;
 import org.erlide.core.erlang.IErlModule;
 import org.erlide.core.erlang.IErlRecordDef;
+import org.erlide.core.erlang.util.ElementChangedEvent;
 import org.erlide.core.text.ErlangToolkit;
 import org.erlide.jinterface.backend.Backend;
 import org.erlide.jinterface.backend.ErlBackend;
@@ -37,11 +47,14 @@ import com.ericsson.otp.erlang.OtpErlangRangeException;
 import com.ericsson.otp.erlang.OtpErlangString;
 import com.ericsson.otp.erlang.OtpErlangTuple;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import erlang.ErlideNoparse;
 
 public final class ErlParser {
 
+    private static final OtpErlangAtom NO_POS = new OtpErlangAtom("_");
+
     private ErlParser() {
 
     }
@@ -64,8 +77,6 @@ public final class ErlParser {
         if (b == null || module == null) {
             return false;
         }
-        OtpErlangList forms = null;
-        OtpErlangList comments = null;
         final String scannerModuleName = ErlangToolkit
                 .createScannerModuleName(module);
         OtpErlangTuple res = null;
@@ -78,6 +89,19 @@ public final class ErlParser {
         } else {
             res = ErlideNoparse.reparse(b, scannerModuleName);
         }
+        return parse(module, res);
+    }
+
+    /**
+     * Build the module from the result of a parse done elsewhere (for example
+     * read from the cache in bulk).
+     * 
+     * @param res
+     *            {ok, Model, Cached}, as returned by erlide_noparse
+     */
+    static boolean parse(final IErlModule module, final OtpErlangTuple res) {
+        OtpErlangList forms = null;
+        OtpErlangList comments = null;
         if (Util.isOk(res)) {
             Bindings bindings = null;
             try {
@@ -95,17 +119,33 @@ public final class ErlParser {
             ErlLogger.error("rpc error when parsing %s: %s", module.getName(),
                     res);
         }
-        final ErlModule mm = (ErlModule) module;
-        mm.removeChildren();
-        // mm.setParseTree(forms);
-        if (forms == null) {
-            return true;
+        final ErlElementDelta delta = update((ErlModule) module, forms,
+                comments);
+        if (delta.getChildren(IErlElementDelta.ALL).length > 0) {
+            final IErlModelManager manager = ErlangCore.getModelManager();
+            manager.registerModelDelta(delta);
+            manager.fire(ElementChangedEvent.POST_CHANGE);
         }
+        return true;
+    }
 
-        for (final OtpErlangObject form : forms) {
-            final IErlMember elem = create(module, (OtpErlangTuple) form);
-            if (elem != null) {
-                mm.addMember(elem);
+    /**
+     * Update the module from the forms and comments returned by noparse.
+     * 
+     * @return the delta, see {@link #update(ErlModule, List, List, Map)}
+     */
+    static ErlElementDelta update(final ErlModule module,
+            final OtpErlangList forms, final OtpErlangList comments) {
+        final List<IErlElement> members = Lists.newArrayList();
+        final List<IErlComment> newComments = Lists.newArrayList();
+        final Map<IErlElement, OtpErlangObject> contents = new IdentityHashMap<IErlElement, OtpErlangObject>();
+        if (forms != null) {
+            for (final OtpErlangObject form : forms) {
+                final IErlMember elem = create(module, (OtpErlangTuple) form);
+                if (elem != null) {
+                    members.add(elem);
+                    contents.put(elem, getContents((OtpErlangTuple) form));
+                }
             }
         }
         if (comments != null) {
@@ -113,13 +153,240 @@ public final class ErlParser {
                 final IErlComment c = createComment(module,
                         (OtpErlangTuple) comment);
                 if (c != null) {
-                    mm.addComment(c);
+                    newComments.add(c);
+                    contents.put(c,
+                            getCommentContents((OtpErlangTuple) comment));
                 }
             }
         }
+        return update(module, members, newComments, contents);
+    }
+
+    /**
+     * Replace the members and comments of the module with the new ones,
+     * keeping the old element for every form that didn't change at all. The
+     * elements of a published snapshot are never modified, so a form that
+     * only moved gets a new element, but it isn't reported as changed.
+     * 
+     * @return a delta describing the members that were added, removed or
+     *         changed; a form with the same kind, name and arity as an old
+     *         one but with other contents is reported as changed
+     */
+    private static ErlElementDelta update(final ErlModule module,
+            final List<IErlElement> members, final List<IErlComment> comments,
+            final Map<IErlElement, OtpErlangObject> contents) {
+        final Map<IErlElement, OtpErlangObject> oldContents = module
+                .getContents();
+        final Map<OtpErlangObject, LinkedList<IErlElement>> unchanged = Maps
+                .newHashMap();
+        final List<IErlElement> oldMembers = Lists
+                .newArrayList(module.fChildren);
+        for (final IErlElement e : oldMembers) {
+            add(unchanged, oldContents.get(e), e);
+        }
+        for (final IErlComment c : module.getComments()) {
+            add(unchanged, oldContents.get(c), c);
+        }
+
+        final List<IErlElement> added = Lists.newArrayList();
+        final Map<IErlElement, IErlElement> kept = new IdentityHashMap<IErlElement, IErlElement>();
+        final ListIterator<IErlElement> it = members.listIterator();
+        while (it.hasNext()) {
+            final IErlElement e = it.next();
+            final IErlElement old = findUnchanged(unchanged, contents, e);
+            if (old == null) {
+                added.add(e);
+            } else {
+                it.set(reuse(contents, e, old));
+                kept.put(old, old);
+            }
+        }
+        final ListIterator<IErlComment> cit = comments.listIterator();
+        while (cit.hasNext()) {
+            final IErlComment c = cit.next();
+            final IErlElement old = findUnchanged(unchanged, contents, c);
+            if (old != null) {
+                cit.set((IErlComment) reuse(contents, c, old));
+            }
+        }
+        module.setMembers(members, comments, contents);
+
+        final ErlElementDelta delta = new ErlElementDelta(0, 0, module);
+        final Map<String, LinkedList<IErlElement>> byKey = Maps.newHashMap();
+        for (final IErlElement e : oldMembers) {
+            if (!kept.containsKey(e)) {
+                add(byKey, getKey(e), e);
+            }
+        }
+        for (final IErlElement e : added) {
+            final LinkedList<IErlElement> olds = byKey.get(getKey(e));
+            if (olds != null && !olds.isEmpty()) {
+                olds.removeFirst();
+                delta.insertDeltaTree(e, new ErlElementDelta(
+                        IErlElementDelta.CHANGED, IErlElementDelta.F_CONTENT,
+                        e));
+            } else {
+                delta.insertDeltaTree(e, new ErlElementDelta(
+                        IErlElementDelta.ADDED, 0, e));
+            }
+        }
+        for (final LinkedList<IErlElement> olds : byKey.values()) {
+            for (final IErlElement e : olds) {
+                delta.insertDeltaTree(e, new ErlElementDelta(
+                        IErlElementDelta.REMOVED, 0, e));
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * @return an old element with the same contents as the given one, or
+     *         null if there is none
+     */
+    private static IErlElement findUnchanged(
+            final Map<OtpErlangObject, LinkedList<IErlElement>> unchanged,
+            final Map<IErlElement, OtpErlangObject> contents,
+            final IErlElement e) {
+        final LinkedList<IErlElement> olds = unchanged.get(contents.get(e));
+        if (olds == null || olds.isEmpty()) {
+            return null;
+        }
+        return olds.removeFirst();
+    }
+
+    /**
+     * @return the old element if it is also at the same position, else the
+     *         new one
+     */
+    private static IErlElement reuse(
+            final Map<IErlElement, OtpErlangObject> contents,
+            final IErlElement e, final IErlElement old) {
+        if (!samePositions(e, old)) {
+            return e;
+        }
+        contents.put(old, contents.remove(e));
+        return old;
+    }
+
+    private static boolean samePositions(final IErlElement e1,
+            final IErlElement e2) {
+        if (e1 instanceof SourceRefElement && e2 instanceof SourceRefElement) {
+            final SourceRefElement s1 = (SourceRefElement) e1;
+            final SourceRefElement s2 = (SourceRefElement) e2;
+            if (s1.fSourceRangeOffset != s2.fSourceRangeOffset
+                    || s1.fSourceRangeLength != s2.fSourceRangeLength
+                    || s1.getLineStart() != s2.getLineStart()
+                    || s1.getLineEnd() != s2.getLineEnd()) {
+                return false;
+            }
+        }
+        if (e1 instanceof ErlMember && e2 instanceof ErlMember) {
+            final ErlMember m1 = (ErlMember) e1;
+            final ErlMember m2 = (ErlMember) e2;
+            if (m1.fNameRangeOffset != m2.fNameRangeOffset
+                    || m1.fNameRangeLength != m2.fNameRangeLength) {
+                return false;
+            }
+        }
+        // the same contents give the same children
+        final List<IErlElement> children1 = ((ErlElement) e1).fChildren;
+        final List<IErlElement> children2 = ((ErlElement) e2).fChildren;
+        if (children1.size() != children2.size()) {
+            return false;
+        }
+        for (int i = 0; i < children1.size(); i++) {
+            if (!samePositions(children1.get(i), children2.get(i))) {
+                return false;
+            }
+        }
         return true;
     }
 
+    private static <K> void add(final Map<K, LinkedList<IErlElement>> map,
+            final K key, final IErlElement e) {
+        if (key == null) {
+            return;
+        }
+        LinkedList<IErlElement> l = map.get(key);
+        if (l == null) {
+            l = Lists.newLinkedList();
+            map.put(key, l);
+        }
+        l.add(e);
+    }
+
+    private static String getKey(final IErlElement e) {
+        if (e instanceof IErlFunction) {
+            return e.getKind() + " " + e.getName() + "/"
+                    + ((IErlFunction) e).getArity();
+        }
+        return e.getKind() + " " + e.getName();
+    }
+
+    /**
+     * @return the form without the positions in it, so that forms that only
+     *         moved compare equal. The length of functions and clauses is
+     *         kept: their bodies aren't in the form, but editing them usually
+     *         changes it.
+     */
+    private static OtpErlangObject getContents(final OtpErlangTuple form) {
+        final String type = ((OtpErlangAtom) form.elementAt(0)).atomValue();
+        if ("function".equals(type)) {
+            // -record(function, {pos, name, arity, args, head, clauses,
+            // name_pos, comment, exported}).
+            final OtpErlangObject[] elems = withoutPos(form, 1, 7).elements();
+            elems[1] = getLength(form.elementAt(1));
+            final OtpErlangList clauses = (OtpErlangList) elems[6];
+            final OtpErlangObject[] cls = new OtpErlangObject[clauses.arity()];
+            for (int i = 0; i < cls.length; i++) {
+                // -record(clause, {pos, name, args, head, name_pos}).
+                final OtpErlangTuple clause = (OtpErlangTuple) clauses
+                        .elementAt(i);
+                final OtpErlangObject[] celems = withoutPos(clause, 1, 5)
+                        .elements();
+                celems[1] = getLength(clause.elementAt(1));
+                cls[i] = new OtpErlangTuple(celems);
+            }
+            elems[6] = new OtpErlangList(cls);
+            return new OtpErlangTuple(elems);
+        } else if ("attribute".equals(type)) {
+            return withoutPos(form, 1);
+        } else if ("error".equals(type)) {
+            final OtpErlangObject[] elems = form.elements();
+            elems[1] = withoutPos((OtpErlangTuple) elems[1], 0);
+            return new OtpErlangTuple(elems);
+        } else if ("tree".equals(type)) {
+            final OtpErlangObject[] elems = form.elements();
+            elems[2] = withoutPos((OtpErlangTuple) elems[2], 1);
+            return new OtpErlangTuple(elems);
+        }
+        return form;
+    }
+
+    private static OtpErlangObject getCommentContents(final OtpErlangTuple c) {
+        // -record(token, {kind, line, offset, length, value, text, last_line})
+        return withoutPos(c, 2, 3, 7);
+    }
+
+    // pos={{Line, LastLine, Offset}, Length}
+    private static OtpErlangObject getLength(final OtpErlangObject pos) {
+        if (pos instanceof OtpErlangTuple && ((OtpErlangTuple) pos).arity() > 1) {
+            return ((OtpErlangTuple) pos).elementAt(1);
+        }
+        return NO_POS;
+    }
+
+    private static OtpErlangTuple withoutPos(final OtpErlangTuple t,
+            final int... slots) {
+        final OtpErlangObject[] elems = t.elements();
+        for (final int slot : slots) {
+            if (slot < elems.length) {
+                elems[slot] = NO_POS;
+            }
+        }
+        return new OtpErlangTuple(elems);
+    }
+
     /**
      * create an IErlComment from a token record
      * 
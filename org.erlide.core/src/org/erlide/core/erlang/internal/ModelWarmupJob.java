@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package org.erlide.core.erlang.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.erlide.core.ErlangPlugin;
+import org.erlide.core.erlang.ErlModelException;
+import org.erlide.core.erlang.ErlangCore;
+import org.erlide.core.erlang.IErlModule;
+import org.erlide.core.erlang.IErlProject;
+import org.erlide.core.text.ErlangToolkit;
+import org.erlide.jinterface.backend.Backend;
+import org.erlide.jinterface.util.ErlLogger;
+
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+import erlang.ErlideNoparse;
+
+/**
+ * Builds the structure of all the modules in the workspace in the background,
+ * so that the first search, outline or build doesn't have to parse them one by
+ * one.
+ *
+ * The parse caches are read in chunks, each chunk as one batch of calls that
+ * run in parallel on the IDE backend. The modules that have no up to date
+ * cache are then parsed by a few threads, which also writes their caches for
+ * the next time.
+ *
+ * Stops when the model cache is full, see {@link ModuleCache}. Can be turned
+ * off with <code>-Derlide.model.warmup=false</code>.
+ */
+public class ModelWarmupJob extends Job {
+
+    private static final boolean ENABLED = !"false".equals(System
+            .getProperty("erlide.model.warmup"));
+    private static final int CHUNK_SIZE = 50;
+
+    public ModelWarmupJob() {
+        super("Loading the Erlang model");
+        setPriority(Job.DECORATE);
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    @Override
+    public boolean belongsTo(final Object family) {
+        return family == ModelWarmupJob.class;
+    }
+
+    @Override
+    protected IStatus run(final IProgressMonitor monitor) {
+        final List<ErlModule> modules = getModules();
+        if (modules.isEmpty()) {
+            return Status.OK_STATUS;
+        }
+        final Backend b = ErlangCore.getBackendManager().getIdeBackend();
+        final ErlangPlugin plugin = ErlangPlugin.getDefault();
+        if (b == null || plugin == null) {
+            return Status.OK_STATUS;
+        }
+        final String stateDir = plugin.getStateLocation().toString();
+        final long start = System.currentTimeMillis();
+        monitor.beginTask(getName(), modules.size());
+        try {
+            final List<ErlModule> notCached = new ArrayList<ErlModule>();
+            int cached = 0;
+            for (int i = 0; i < modules.size(); i += CHUNK_SIZE) {
+                if (monitor.isCanceled()) {
+                    return Status.CANCEL_STATUS;
+                }
+                if (isCacheFull()) {
+                    break;
+                }
+                final List<ErlModule> chunk = modules.subList(i, Math.min(
+                        i + CHUNK_SIZE, modules.size()));
+                cached += loadCached(b, stateDir, chunk, notCached, monitor);
+            }
+            if (!parse(notCached, monitor)) {
+                return Status.CANCEL_STATUS;
+            }
+            ErlLogger.debug("model warm-up: %d modules (%d cached) in %d ms%s",
+                    modules.size(), cached, System.currentTimeMillis() - start,
+                    isCacheFull() ? ", stopped at the cache budget" : "");
+            return Status.OK_STATUS;
+        } finally {
+            monitor.done();
+        }
+    }
+
+    private static List<ErlModule> getModules() {
+        final List<ErlModule> result = new ArrayList<ErlModule>();
+        try {
+            for (final IErlProject project : ErlangCore.getModel()
+                    .getErlangProjects()) {
+                if (!project.getProject().isAccessible()) {
+                    continue;
+                }
+                for (final IErlModule m : project.getModulesAndHeaders()) {
+                    if (m instanceof ErlModule && !m.isStructureKnown()) {
+                        result.add((ErlModule) m);
+                    }
+                }
+            }
+        } catch (final ErlModelException e) {
+            ErlLogger.warn(e);
+        }
+        return result;
+    }
+
+    /*
+     * Warming up more modules than the model cache holds would only evict the
+     * ones loaded first, which are no less likely to be used.
+     */
+    private static boolean isCacheFull() {
+        final ModuleCache cache = ModuleCache.getDefault();
+        return cache.getBudget() > 0 && cache.getSize() >= cache.getBudget();
+    }
+
+    /**
+     * @return the number of modules built from their caches
+     */
+    private static int loadCached(final Backend b, final String stateDir,
+            final List<ErlModule> chunk, final List<ErlModule> notCached,
+            final IProgressMonitor monitor) {
+        final List<String> scannerNames = new ArrayList<String>(chunk.size());
+        final List<String> paths = new ArrayList<String>(chunk.size());
+        final List<ErlModule> queried = new ArrayList<ErlModule>(chunk.size());
+        for (final ErlModule m : chunk) {
+            final String path = m.getFilePath();
+            if (path == null || !m.useCaches()) {
+                notCached.add(m);
+                continue;
+            }
+            queried.add(m);
+            scannerNames.add(ErlangToolkit.createScannerModuleName(m));
+            paths.add(path);
+        }
+        if (queried.isEmpty()) {
+            return 0;
+        }
+        final OtpErlangTuple[] res = ErlideNoparse.cachedParse(b,
+                scannerNames, paths, stateDir);
+        int loaded = 0;
+        for (int i = 0; i < res.length; i++) {
+            final ErlModule m = queried.get(i);
+            if (res[i] == null) {
+                notCached.add(m);
+            } else {
+                if (m.warmUp(res[i])) {
+                    loaded++;
+                }
+                monitor.worked(1);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Open the modules that weren't cached, a few at a time, until the model
+     * cache is full.
+     *
+     * @return false if canceled
+     */
+    private static boolean parse(final List<ErlModule> modules,
+            final IProgressMonitor monitor) {
+        if (modules.isEmpty()) {
+            return true;
+        }
+        final int threads = Math.min(modules.size(), Runtime.getRuntime()
+                .availableProcessors());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final AtomicInteger done = new AtomicInteger();
+        for (final ErlModule m : modules) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    if (monitor.isCanceled() || isCacheFull()) {
+                        return;
+                    }
+                    try {
+                        m.open(null);
+                    } catch (final ErlModelException e) {
+                        ErlLogger.warn(e);
+                    }
+                    done.incrementAndGet();
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            // report progress from this thread, monitors aren't thread safe;
+            // when canceled, the queued modules are skipped
+            int reported = 0;
+            while (!executor.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+                final int n = done.get();
+                monitor.worked(n - reported);
+                reported = n;
+            }
+            monitor.worked(done.get() - reported);
+        } catch (final InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !monitor.isCanceled();
+    }
+}
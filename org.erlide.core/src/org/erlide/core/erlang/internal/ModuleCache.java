@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package org.erlide.core.erlang.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.erlide.jinterface.util.ErlLogger;
+
+/**
+ * Keeps the memory used by the structure of the modules within a budget. When
+ * the estimated size of all the built modules is over the budget, the least
+ * recently used ones that aren't open in an editor are emptied; they are
+ * parsed again (using the noparse cache when possible) the next time they are
+ * accessed.
+ *
+ * The budget is set in megabytes with <code>-Derlide.model.cache=N</code>
+ * (default 64), 0 means no limit.
+ */
+public final class ModuleCache {
+
+    private static final long MB = 1024 * 1024;
+    private static final long BUDGET = Long.getLong("erlide.model.cache", 64)
+            .longValue()
+            * MB;
+
+    private static final ModuleCache instance = new ModuleCache(BUDGET);
+
+    private final long budget;
+    // module -> estimated size
+    private final Map<ErlModule, Long> modules = new HashMap<ErlModule, Long>();
+    private long size = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong rebuildTime = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    ModuleCache(final long budget) {
+        this.budget = budget;
+    }
+
+    public static ModuleCache getDefault() {
+        return instance;
+    }
+
+    /**
+     * The structure of the module was built.
+     *
+     * @param rebuilt
+     *            true if the module had been evicted before
+     * @param time
+     *            how long it took, in milliseconds
+     */
+    void built(final ErlModule module, final boolean rebuilt, final long time) {
+        if (rebuilt) {
+            rebuilds.incrementAndGet();
+            rebuildTime.addAndGet(time);
+        } else {
+            builds.incrementAndGet();
+        }
+        final long moduleSize = module.estimateSize();
+        synchronized (this) {
+            final Long old = modules.put(module, moduleSize);
+            size += moduleSize - (old == null ? 0 : old.longValue());
+        }
+    }
+
+    /**
+     * The structure of the module was needed and was already there.
+     */
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void removed(final ErlModule module) {
+        synchronized (this) {
+            final Long old = modules.remove(module);
+            if (old != null) {
+                size -= old.longValue();
+            }
+        }
+    }
+
+    /**
+     * If we are over the budget, start evicting modules in the background.
+     * This is not done by the caller, who may be holding the parse lock of
+     * another module.
+     */
+    void evictIfNeeded() {
+        synchronized (this) {
+            if (budget <= 0 || size <= budget) {
+                return;
+            }
+        }
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        final Job job = new Job("Trimming the Erlang model") {
+            @Override
+            protected IStatus run(final IProgressMonitor monitor) {
+                try {
+                    evict();
+                } finally {
+                    evicting.set(false);
+                }
+                return Status.OK_STATUS;
+            }
+        };
+        job.setSystem(true);
+        job.setPriority(Job.DECORATE);
+        job.schedule();
+    }
+
+    /**
+     * Evict modules until we are below the budget (with some margin, so that
+     * this isn't done after each build).
+     */
+    private void evict() {
+        final List<ErlModule> victims;
+        synchronized (this) {
+            victims = new ArrayList<ErlModule>(modules.keySet());
+        }
+        Collections.sort(victims, new Comparator<ErlModule>() {
+            public int compare(final ErlModule m1, final ErlModule m2) {
+                final long d = m1.getLastAccess() - m2.getLastAccess();
+                return d < 0 ? -1 : d > 0 ? 1 : 0;
+            }
+        });
+        final long target = budget - budget / 4;
+        int count = 0;
+        for (final ErlModule module : victims) {
+            synchronized (this) {
+                if (size <= target) {
+                    break;
+                }
+            }
+            if (module.evict()) {
+                removed(module);
+                count++;
+            }
+        }
+        evictions.addAndGet(count);
+        if (ErlModelManager.verbose) {
+            ErlLogger.debug("model cache: evicted %s modules, %s", count,
+                    this);
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the estimated size of the built modules, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getModuleCount() {
+        return modules.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return how many times a module was built, when it wasn't evicted
+     *         (first time, or after a change)
+     */
+    public long getBuildCount() {
+        return builds.get();
+    }
+
+    /**
+     * @return how many times an evicted module had to be built again
+     */
+    public long getRebuildCount() {
+        return rebuilds.get();
+    }
+
+    /**
+     * @return the total time spent building evicted modules again, in
+     *         milliseconds
+     */
+    public long getRebuildTime() {
+        return rebuildTime.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d modules, %d/%d KB, %d hits, %d builds, "
+                + "%d evictions, %d rebuilds (%d ms)", getModuleCount(),
+                getSize() / 1024, budget / 1024, getHitCount(),
+                getBuildCount(), getEvictionCount(), getRebuildCount(),
+                getRebuildTime());
+    }
+}
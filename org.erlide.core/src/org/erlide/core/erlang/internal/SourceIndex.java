@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package org.erlide.core.erlang.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.erlide.core.erlang.ErlModelException;
+import org.erlide.core.erlang.IErlElement;
+import org.erlide.core.erlang.IParent;
+import org.erlide.core.erlang.ISourceRange;
+import org.erlide.core.erlang.ISourceReference;
+
+/**
+ * An immutable index of the source ranges of a module's elements, used to
+ * find the innermost element at an offset or a line without walking the
+ * whole model.
+ *
+ * Each level of the element tree is kept sorted by start position, together
+ * with the largest end position seen so far, so a lookup is a binary search
+ * per level; overlapping ranges (which shouldn't happen, but might in broken
+ * code) are handled by looking further back while they can still match.
+ */
+final class SourceIndex {
+
+    private static final class Node {
+        final IErlElement element;
+        final int start;
+        final int end;
+        final SourceIndex children;
+
+        Node(final IErlElement element, final int start, final int end,
+                final SourceIndex children) {
+            this.element = element;
+            this.start = start;
+            this.end = end;
+            this.children = children;
+        }
+    }
+
+    private static final Comparator<Node> BY_START = new Comparator<Node>() {
+        public int compare(final Node n1, final Node n2) {
+            return n1.start < n2.start ? -1 : n1.start == n2.start ? 0 : 1;
+        }
+    };
+
+    private static final SourceIndex EMPTY = new SourceIndex(new Node[0]);
+
+    private final Node[] nodes;
+    private final int[] starts;
+    private final int[] maxEnds;
+
+    private SourceIndex(final Node[] nodes) {
+        Arrays.sort(nodes, BY_START);
+        this.nodes = nodes;
+        starts = new int[nodes.length];
+        maxEnds = new int[nodes.length];
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < nodes.length; i++) {
+            starts[i] = nodes[i].start;
+            max = Math.max(max, nodes[i].end);
+            maxEnds[i] = max;
+        }
+    }
+
+    /**
+     * Index the children of the element by offset.
+     */
+    static SourceIndex byOffset(final IParent parent) {
+        return byOffset(getChildren(parent));
+    }
+
+    /**
+     * Index the elements by offset.
+     */
+    static SourceIndex byOffset(final List<IErlElement> elements) {
+        final List<Node> nodes = new ArrayList<Node>();
+        for (final IErlElement e : elements) {
+            if (!(e instanceof ISourceReference)) {
+                continue;
+            }
+            ISourceRange r;
+            try {
+                r = ((ISourceReference) e).getSourceRange();
+            } catch (final ErlModelException e1) {
+                r = null;
+            }
+            if (r == null) {
+                continue;
+            }
+            nodes.add(new Node(e, r.getOffset(), r.getOffset() + r.getLength(),
+                    e instanceof IParent ? byOffset((IParent) e) : EMPTY));
+        }
+        return nodes.isEmpty() ? EMPTY : new SourceIndex(nodes
+                .toArray(new Node[nodes.size()]));
+    }
+
+    /**
+     * Index the children of the element by line.
+     */
+    static SourceIndex byLine(final IParent parent) {
+        return byLine(getChildren(parent));
+    }
+
+    /**
+     * Index the elements by line.
+     */
+    static SourceIndex byLine(final List<IErlElement> elements) {
+        final List<Node> nodes = new ArrayList<Node>();
+        for (final IErlElement e : elements) {
+            if (!(e instanceof ISourceReference)) {
+                continue;
+            }
+            final ISourceReference sr = (ISourceReference) e;
+            nodes.add(new Node(e, sr.getLineStart(), sr.getLineEnd(),
+                    e instanceof IParent ? byLine((IParent) e) : EMPTY));
+        }
+        return nodes.isEmpty() ? EMPTY : new SourceIndex(nodes
+                .toArray(new Node[nodes.size()]));
+    }
+
+    private static List<IErlElement> getChildren(final IParent parent) {
+        try {
+            return parent.getChildren();
+        } catch (final ErlModelException e) {
+            return new ArrayList<IErlElement>(0);
+        }
+    }
+
+    /**
+     * @return the innermost element whose range includes the position (both
+     *         ends included), or null
+     */
+    IErlElement find(final int position) {
+        // the last node starting at or before the position
+        int lo = 0;
+        int hi = starts.length - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= position) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        for (int i = hi; i >= 0 && maxEnds[i] >= position; i--) {
+            final Node n = nodes[i];
+            if (n.end >= position) {
+                final IErlElement inner = n.children.find(position);
+                return inner != null ? inner : n.element;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,366 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package org.erlide.core.erlang.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.CoreException;
+import org.erlide.core.erlang.ErlModelException;
+import org.erlide.core.erlang.ErlangCore;
+import org.erlide.core.erlang.IErlModel;
+import org.erlide.core.erlang.IErlModule;
+import org.erlide.core.erlang.IErlProject;
+import org.erlide.jinterface.backend.Backend;
+import org.erlide.jinterface.util.ErlLogger;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangRangeException;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+import erlang.ErlideDoc;
+
+/**
+ * Sorted indexes of module names and exported functions, so that code
+ * completion can filter them by prefix without asking the backend on each
+ * keystroke.
+ *
+ * <ul>
+ * <li>The modules of each project are taken from the model the first time they
+ * are needed; the project's index is dropped when a module is added to or
+ * removed from it, or when the project itself changes.</li>
+ * <li>The modules in the code path of a backend (OTP and the other libraries)
+ * are fetched once per backend.</li>
+ * <li>The external modules of a project are fetched once per backend and
+ * external modules file.</li>
+ * <li>The exported functions of non-project modules, with their documentation,
+ * are fetched once per backend and module; only the most recently used ones
+ * are kept. Those of workspace modules, e.g. from projects that aren't
+ * referenced, can change with each build, so they are fetched each time.</li>
+ * </ul>
+ */
+public final class ModuleIndex {
+
+    private static final int MAX_PROPOSALS = 100;
+
+    private static final ModuleIndex instance = new ModuleIndex();
+
+    // project -> module name -> module
+    private final Map<IProject, SortedMap<String, IErlModule>> projects = new HashMap<IProject, SortedMap<String, IErlModule>>();
+    // incremented on each change, so that an index built from an outdated
+    // model isn't stored
+    private int generation = 0;
+    private final Map<Backend, SortedSet<String>> codePath = new WeakHashMap<Backend, SortedSet<String>>();
+    // backend -> external modules file -> module names
+    private final Map<Backend, Map<String, SortedSet<String>>> externals = new WeakHashMap<Backend, Map<String, SortedSet<String>>>();
+    // backend -> module -> proposals for the empty prefix
+    private final Map<Backend, Map<String, OtpErlangList>> proposals = new WeakHashMap<Backend, Map<String, OtpErlangList>>();
+
+    private ModuleIndex() {
+    }
+
+    public static ModuleIndex getDefault() {
+        return instance;
+    }
+
+    /**
+     * @return the sorted names of the modules starting with the prefix, from
+     *         the project, its referenced projects, its external modules and
+     *         the code path of the backend
+     */
+    public List<String> getModuleNames(final Backend b,
+            final IErlProject erlProject, final String prefix) {
+        final SortedSet<String> result = new TreeSet<String>();
+        if (erlProject != null) {
+            for (final SortedMap<String, IErlModule> modules : getProjectModules(erlProject)) {
+                result.addAll(withPrefix(modules, prefix).keySet());
+            }
+            if (b != null) {
+                result.addAll(withPrefix(getExternalModules(b, erlProject),
+                        prefix));
+            }
+        }
+        if (b != null) {
+            result.addAll(withPrefix(getCodePathModules(b), prefix));
+        }
+        return new ArrayList<String>(result);
+    }
+
+    /**
+     * @return the module with the given name in the project or in its
+     *         referenced projects, or null
+     */
+    public IErlModule findModule(final IErlProject erlProject,
+            final String name) {
+        if (erlProject == null) {
+            return null;
+        }
+        for (final SortedMap<String, IErlModule> modules : getProjectModules(erlProject)) {
+            final IErlModule m = modules.get(name);
+            if (m != null) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The function proposals of a module that isn't in the project, as
+     * returned by <code>erlide_otp_doc:get_proposals/3</code>, filtered by
+     * prefix. Those of modules found anywhere in the workspace are not cached.
+     *
+     * The parameter offsets of the proposals are those for the empty prefix,
+     * that is relative to the start of the function name.
+     */
+    public OtpErlangList getProposals(final Backend b, final String module,
+            final String prefix, final String stateDir) {
+        OtpErlangList all;
+        synchronized (this) {
+            all = getProposalCache(b).get(module);
+        }
+        if (all == null) {
+            if (isWorkspaceModule(module)) {
+                final OtpErlangObject res = ErlideDoc.getProposalsWithDoc(b,
+                        module, prefix, stateDir);
+                if (!(res instanceof OtpErlangList)) {
+                    return new OtpErlangList();
+                }
+                return withEmptyPrefixOffsets((OtpErlangList) res, prefix
+                        .length());
+            }
+            final OtpErlangObject res = ErlideDoc.getProposalsWithDoc(b,
+                    module, "", stateDir);
+            if (!(res instanceof OtpErlangList)) {
+                return new OtpErlangList();
+            }
+            all = (OtpErlangList) res;
+            synchronized (this) {
+                getProposalCache(b).put(module, all);
+            }
+        }
+        if (prefix.length() == 0) {
+            return all;
+        }
+        final List<OtpErlangObject> result = new ArrayList<OtpErlangObject>();
+        for (final OtpErlangObject o : all) {
+            final OtpErlangTuple t = (OtpErlangTuple) o;
+            final String funWithArity = ((OtpErlangString) t.elementAt(0))
+                    .stringValue();
+            if (funWithArity.startsWith(prefix)) {
+                result.add(o);
+            }
+        }
+        return new OtpErlangList(result.toArray(new OtpErlangObject[result
+                .size()]));
+    }
+
+    /**
+     * A module was added to or removed from the project, or the project
+     * changed (opened, closed, its references changed...).
+     */
+    public synchronized void projectChanged(final IProject project) {
+        projects.remove(project);
+        generation++;
+    }
+
+    /**
+     * @return true if a project of the workspace has the module, using the
+     *         index of each project
+     */
+    private boolean isWorkspaceModule(final String module) {
+        try {
+            for (final IErlProject erlProject : ErlangCore.getModel()
+                    .getErlangProjects()) {
+                if (erlProject.getProject().isOpen()
+                        && getModules(erlProject).containsKey(module)) {
+                    return true;
+                }
+            }
+        } catch (final ErlModelException e) {
+            ErlLogger.warn(e);
+        }
+        return false;
+    }
+
+    /**
+     * The parameter offsets of proposals fetched for a prefix are relative to
+     * its end; make them relative to the start of the function name.
+     */
+    private static OtpErlangList withEmptyPrefixOffsets(
+            final OtpErlangList proposals, final int prefixLength) {
+        if (prefixLength == 0) {
+            return proposals;
+        }
+        final OtpErlangObject[] result = new OtpErlangObject[proposals
+                .arity()];
+        try {
+            for (int i = 0; i < result.length; i++) {
+                // {FunWithArity, FunWithParameters, [{Offset, Length}], Doc}
+                final OtpErlangObject[] f = ((OtpErlangTuple) proposals
+                        .elementAt(i)).elements();
+                final OtpErlangList pars = (OtpErlangList) f[2];
+                final OtpErlangObject[] newPars = new OtpErlangObject[pars
+                        .arity()];
+                for (int j = 0; j < newPars.length; j++) {
+                    final OtpErlangTuple par = (OtpErlangTuple) pars
+                            .elementAt(j);
+                    final int offset = ((OtpErlangLong) par.elementAt(0))
+                            .intValue();
+                    newPars[j] = new OtpErlangTuple(new OtpErlangObject[] {
+                            new OtpErlangLong(offset + prefixLength),
+                            par.elementAt(1) });
+                }
+                f[2] = new OtpErlangList(newPars);
+                result[i] = new OtpErlangTuple(f);
+            }
+        } catch (final OtpErlangRangeException e) {
+            ErlLogger.warn(e);
+            return new OtpErlangList();
+        }
+        return new OtpErlangList(result);
+    }
+
+    private List<SortedMap<String, IErlModule>> getProjectModules(
+            final IErlProject erlProject) {
+        final List<SortedMap<String, IErlModule>> result = new ArrayList<SortedMap<String, IErlModule>>();
+        final IErlModel model = ErlangCore.getModel();
+        result.add(getModules(erlProject));
+        try {
+            for (final IProject p : erlProject.getProject()
+                    .getReferencedProjects()) {
+                final IErlProject ep = model.findProject(p);
+                if (ep != null) {
+                    result.add(getModules(ep));
+                }
+            }
+        } catch (final CoreException e) {
+            ErlLogger.warn(e);
+        }
+        return result;
+    }
+
+    private SortedMap<String, IErlModule> getModules(
+            final IErlProject erlProject) {
+        final IProject project = erlProject.getProject();
+        final int startGeneration;
+        synchronized (this) {
+            final SortedMap<String, IErlModule> modules = projects.get(project);
+            if (modules != null) {
+                return modules;
+            }
+            startGeneration = generation;
+        }
+        final SortedMap<String, IErlModule> modules = new TreeMap<String, IErlModule>();
+        try {
+            erlProject.open(null);
+            for (final IErlModule m : erlProject.getModules()) {
+                if (m.getModuleKind() == IErlModule.ModuleKind.ERL) {
+                    final String name = ErlideUtil.withoutExtension(m
+                            .getName());
+                    if (!modules.containsKey(name)) {
+                        modules.put(name, m);
+                    }
+                }
+            }
+        } catch (final CoreException e) {
+            ErlLogger.warn(e);
+            // don't keep a partial index
+            return modules;
+        }
+        synchronized (this) {
+            if (generation == startGeneration) {
+                projects.put(project, modules);
+            }
+        }
+        return modules;
+    }
+
+    private SortedSet<String> getCodePathModules(final Backend b) {
+        synchronized (this) {
+            final SortedSet<String> modules = codePath.get(b);
+            if (modules != null) {
+                return modules;
+            }
+        }
+        final SortedSet<String> modules = new TreeSet<String>(ErlideDoc
+                .getAllModules(b));
+        synchronized (this) {
+            codePath.put(b, modules);
+        }
+        return modules;
+    }
+
+    private SortedSet<String> getExternalModules(final Backend b,
+            final IErlProject erlProject) {
+        final IErlModel model = ErlangCore.getModel();
+        final String externalModules = model.getExternalModules(erlProject);
+        Map<String, SortedSet<String>> byFile;
+        synchronized (this) {
+            byFile = externals.get(b);
+            if (byFile == null) {
+                byFile = new HashMap<String, SortedSet<String>>();
+                externals.put(b, byFile);
+            }
+            final SortedSet<String> modules = byFile.get(externalModules);
+            if (modules != null) {
+                return modules;
+            }
+        }
+        final SortedSet<String> modules = new TreeSet<String>();
+        for (final String path : ModelUtils.getExternalModules(b, "", model,
+                externalModules)) {
+            modules.add(ErlideUtil.basenameWithoutExtension(path));
+        }
+        synchronized (this) {
+            byFile.put(externalModules, modules);
+        }
+        return modules;
+    }
+
+    private Map<String, OtpErlangList> getProposalCache(final Backend b) {
+        Map<String, OtpErlangList> cache = proposals.get(b);
+        if (cache == null) {
+            cache = new LinkedHashMap<String, OtpErlangList>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<String, OtpErlangList> eldest) {
+                    return size() > MAX_PROPOSALS;
+                }
+            };
+            proposals.put(b, cache);
+        }
+        return cache;
+    }
+
+    private static <V> SortedMap<String, V> withPrefix(
+            final SortedMap<String, V> map, final String prefix) {
+        return map.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private static SortedSet<String> withPrefix(final SortedSet<String> set,
+            final String prefix) {
+        return set.subSet(prefix, prefix + Character.MAX_VALUE);
+    }
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package com.ericsson.otp.erlang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class GenericQueueTest {
+
+    @Test
+    public void fifoOrder() {
+        final GenericQueue queue = new GenericQueue();
+        for (int i = 0; i < 100; i++) {
+            queue.put(Integer.valueOf(i));
+        }
+        assertEquals(100, queue.getCount());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), queue.tryGet());
+        }
+        assertNull(queue.tryGet());
+        assertEquals(0, queue.getCount());
+    }
+
+    @Test
+    public void flush() {
+        final GenericQueue queue = new GenericQueue();
+        queue.put("a");
+        queue.put("b");
+        queue.flush();
+        assertEquals(0, queue.getCount());
+        assertNull(queue.tryGet());
+        queue.put("c");
+        assertEquals("c", queue.tryGet());
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void getTimesOut() throws InterruptedException {
+        new GenericQueue().get(50);
+    }
+
+    @Test
+    public void waitingReaderIsWokenUp() throws Exception {
+        final GenericQueue queue = new GenericQueue();
+        final AtomicReference<Object> received = new AtomicReference<Object>();
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                received.set(queue.get());
+            }
+        };
+        reader.start();
+        Thread.sleep(100);
+        queue.put("wake up");
+        reader.join(5000);
+        assertEquals("wake up", received.get());
+    }
+
+    @Test
+    public void multipleProducers() throws Exception {
+        final int producers = 8;
+        final int items = 20000;
+        final GenericQueue queue = new GenericQueue();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < items; i++) {
+                        queue.put(new int[] { producer, i });
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        start.countDown();
+
+        // each producer's items arrive complete and in order
+        final int[] next = new int[producers];
+        for (int n = 0; n < producers * items; n++) {
+            final int[] item = (int[]) queue.get(5000);
+            assertEquals(next[item[0]], item[1]);
+            next[item[0]]++;
+        }
+        for (final Thread t : threads) {
+            t.join();
+        }
+        for (int p = 0; p < producers; p++) {
+            assertEquals(items, next[p]);
+        }
+        assertNull(queue.tryGet());
+        assertEquals(0, queue.getCount());
+    }
+
+}
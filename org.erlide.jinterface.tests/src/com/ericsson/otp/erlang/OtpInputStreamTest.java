@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package com.ericsson.otp.erlang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class OtpInputStreamTest {
+
+    private static byte[] encode(final OtpErlangObject o) {
+        return new OtpOutputStream(o).toByteArray();
+    }
+
+    private static void roundTrip(final OtpErlangObject o)
+            throws OtpErlangDecodeException {
+        final OtpInputStream in = new OtpInputStream(encode(o));
+        assertEquals(o, in.read_any());
+        assertEquals(0, in.available());
+    }
+
+    private static void roundTrip(final String s)
+            throws OtpErlangDecodeException {
+        final OtpInputStream in = new OtpInputStream(
+                encode(new OtpErlangString(s)));
+        assertEquals(s, in.read_string());
+        assertEquals(0, in.available());
+    }
+
+    private static String repeat(final char c, final int n) {
+        final char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /*
+     * reset is package-private and the tests live in another bundle, so it is
+     * reached through reflection.
+     */
+    private static void reset(final OtpInputStream in, final byte[] buf,
+            final int offset, final int length) throws Exception {
+        final Method m = OtpInputStream.class.getDeclaredMethod("reset",
+                byte[].class, int.class, int.class);
+        m.setAccessible(true);
+        m.invoke(in, buf, offset, length);
+    }
+
+    @Test
+    public void roundTrip_terms() throws Exception {
+        roundTrip(new OtpErlangAtom("hello"));
+        roundTrip(new OtpErlangLong(42));
+        roundTrip(new OtpErlangLong(-100000));
+        roundTrip(new OtpErlangLong(new BigInteger(
+                "-123456789012345678901234567890")));
+        roundTrip(new OtpErlangDouble(3.25));
+        roundTrip(new OtpErlangBinary(new byte[] { 0, 1, (byte) 255 }));
+        roundTrip(new OtpErlangPid("node@host", 1, 2, 3));
+        roundTrip(new OtpErlangRef("node@host", new int[] { 1, 2, 3 }, 0));
+        roundTrip(new OtpErlangList());
+        roundTrip(new OtpErlangTuple(new OtpErlangObject[] {
+                new OtpErlangAtom("ok"),
+                new OtpErlangList(new OtpErlangObject[] {
+                        new OtpErlangAtom("a"), new OtpErlangLong(1000),
+                        new OtpErlangTuple(new OtpErlangObject[0]) }) }));
+    }
+
+    @Test
+    public void roundTrip_strings() throws Exception {
+        roundTrip("");
+        roundTrip("hello");
+        roundTrip("åäö ÿ");
+        roundTrip("λx → x");
+        roundTrip(repeat('a', 70000));
+        roundTrip(repeat('λ', 70000));
+    }
+
+    @Test
+    public void truncatedInput() throws Exception {
+        final byte[] bytes = encode(new OtpErlangTuple(new OtpErlangObject[] {
+                new OtpErlangAtom("hello"), new OtpErlangString("world"),
+                new OtpErlangLong(100000), new OtpErlangBinary(new byte[8]) }));
+        for (int len = 0; len < bytes.length; len++) {
+            final byte[] truncated = new byte[len];
+            System.arraycopy(bytes, 0, truncated, 0, len);
+            final OtpInputStream in = new OtpInputStream(truncated);
+            try {
+                in.read_any();
+                fail("decoded " + len + " bytes out of " + bytes.length);
+            } catch (final OtpErlangDecodeException e) {
+            }
+        }
+    }
+
+    @Test
+    public void decodeFromOffset() throws Exception {
+        final OtpErlangObject o = new OtpErlangTuple(new OtpErlangObject[] {
+                new OtpErlangAtom("ok"), new OtpErlangString("text") });
+        final byte[] bytes = encode(o);
+        final byte[] buf = new byte[bytes.length + 20];
+        Arrays.fill(buf, (byte) 0x6a);
+        System.arraycopy(bytes, 0, buf, 10, bytes.length);
+        final OtpInputStream in = new OtpInputStream(buf, 10, bytes.length, 0);
+        assertEquals(o, in.read_any());
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void reset_reusesStream() throws Exception {
+        final OtpErlangObject first = new OtpErlangAtom("first");
+        final OtpErlangObject second = new OtpErlangString("second");
+        final OtpInputStream in = new OtpInputStream(encode(first));
+        assertEquals(first, in.read_any());
+        final byte[] bytes = encode(second);
+        final byte[] buf = new byte[bytes.length + 5];
+        System.arraycopy(bytes, 0, buf, 5, bytes.length);
+        reset(in, buf, 5, bytes.length);
+        assertEquals(second, in.read_any());
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void atoms_roundTrip() throws Exception {
+        roundTrip(new OtpErlangAtom(""));
+        roundTrip(new OtpErlangAtom("ok"));
+        roundTrip(new OtpErlangAtom("Hello World"));
+        roundTrip(new OtpErlangAtom("åäö ÿ"));
+        roundTrip(new OtpErlangAtom(repeat('z', 255)));
+    }
+
+    @Test
+    public void atoms_areShared() throws Exception {
+        final byte[] bytes = encode(new OtpErlangAtom("shared_atom"));
+        final OtpErlangObject first = new OtpInputStream(bytes).read_any();
+        final OtpErlangObject second = new OtpInputStream(bytes).read_any();
+        assertSame(first, second);
+    }
+
+    @Test
+    public void atoms_similarNames() throws Exception {
+        final String[] names = { "abc", "abd", "abc", "åbc", "abc", "abcd" };
+        for (final String name : names) {
+            final OtpInputStream in = new OtpInputStream(
+                    encode(new OtpErlangAtom(name)));
+            assertEquals(name, in.read_atom());
+        }
+    }
+
+    @Test
+    public void atoms_moreThanCached() throws Exception {
+        final int n = 10000;
+        final OtpErlangObject[] atoms = new OtpErlangObject[n];
+        for (int i = 0; i < n; i++) {
+            atoms[i] = new OtpErlangAtom("atom_" + i);
+        }
+        final OtpErlangList list = new OtpErlangList(atoms);
+        // twice, the second time partly from the cache
+        roundTrip(list);
+        roundTrip(list);
+    }
+
+    /*
+     * Connections decode the header of a packet in a shared receive buffer
+     * and copy the rest out of it before delivering it, like this.
+     */
+    @Test
+    public void detachedPayloadSurvivesBufferReuse() throws Exception {
+        final OtpErlangObject header = new OtpErlangTuple(
+                new OtpErlangObject[] { new OtpErlangLong(2),
+                        new OtpErlangAtom(""),
+                        new OtpErlangPid("node@host", 1, 2, 3) });
+        final OtpErlangObject payload = new OtpErlangTuple(
+                new OtpErlangObject[] { new OtpErlangAtom("reply"),
+                        new OtpErlangString("some text") });
+        final OtpOutputStream out = new OtpOutputStream();
+        out.write_any(header);
+        out.write_any(payload);
+        final byte[] shared = out.toByteArray();
+
+        final OtpInputStream in = new OtpInputStream(shared);
+        assertEquals(header, in.read_any());
+        final byte[] detached = new byte[in.available()];
+        in.readN(detached);
+        Arrays.fill(shared, (byte) 0);
+
+        assertEquals(payload, new OtpInputStream(detached).read_any());
+    }
+
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package com.ericsson.otp.erlang;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class OtpOutputStreamTest {
+
+    private static String repeat(final char c, final int n) {
+        final char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void checkSize(final OtpErlangObject o) {
+        final int size = new OtpOutputStream(o).size();
+        assertEquals(o.toString(), size, OtpOutputStream.encodedSize(o));
+    }
+
+    /*
+     * The pool is package-private and the tests live in another bundle, so it
+     * is reached through reflection.
+     */
+    private static OtpOutputStream acquire() throws Exception {
+        final Method m = OtpOutputStream.class.getDeclaredMethod("acquire");
+        m.setAccessible(true);
+        return (OtpOutputStream) m.invoke(null);
+    }
+
+    private static OtpOutputStream acquire(final OtpErlangObject o)
+            throws Exception {
+        final Method m = OtpOutputStream.class.getDeclaredMethod("acquire",
+                OtpErlangObject.class);
+        m.setAccessible(true);
+        return (OtpOutputStream) m.invoke(null, o);
+    }
+
+    private static void release(final OtpOutputStream s) throws Exception {
+        final Method m = OtpOutputStream.class.getDeclaredMethod("release",
+                OtpOutputStream.class);
+        m.setAccessible(true);
+        m.invoke(null, s);
+    }
+
+    @Test
+    public void encodedSize_commonTypes() {
+        checkSize(new OtpErlangAtom("hello"));
+        checkSize(new OtpErlangLong(7));
+        checkSize(new OtpErlangLong(-7));
+        checkSize(new OtpErlangLong(100000));
+        checkSize(new OtpErlangDouble(1.5));
+        checkSize(new OtpErlangTuple(new OtpErlangObject[] {
+                new OtpErlangAtom("ok"), new OtpErlangLong(1) }));
+        checkSize(new OtpErlangList(new OtpErlangObject[] {
+                new OtpErlangAtom("a"), new OtpErlangString("bc") }));
+        checkSize(new OtpErlangList());
+        checkSize(new OtpErlangBinary(new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void encodedSize_strings() {
+        checkSize(new OtpErlangString("hello"));
+        checkSize(new OtpErlangString("åäö"));
+        checkSize(new OtpErlangString("λx → x"));
+        checkSize(new OtpErlangString(repeat('a', 65535)));
+        checkSize(new OtpErlangString(repeat('a', 70000)));
+        checkSize(new OtpErlangString(repeat('λ', 70000)));
+    }
+
+    @Test
+    public void encodedSize_longStringIsTight() {
+        final int len = 100000;
+        final int size = OtpOutputStream.encodedSize(new OtpErlangString(
+                repeat('a', len)));
+        assertTrue(size <= 2 * len + 6);
+    }
+
+    @Test
+    public void encodedSize_isEnoughForBigTerms() {
+        final OtpErlangObject o = new OtpErlangTuple(new OtpErlangObject[] {
+                new OtpErlangLong(new BigInteger("123456789012345678901234567890")),
+                new OtpErlangPid("node@host", 1, 2, 3),
+                new OtpErlangRef("node@host", new int[] { 1, 2, 3 }, 0) });
+        assertTrue(OtpOutputStream.encodedSize(o) >= new OtpOutputStream(o)
+                .size());
+    }
+
+    @Test
+    public void growsBeyondInitialSize() throws Exception {
+        final OtpErlangString o = new OtpErlangString(repeat('x', 10000));
+        final OtpOutputStream out = new OtpOutputStream(1);
+        out.write_any(o);
+        assertEquals(new OtpOutputStream(o).size(), out.size());
+        assertEquals(o.stringValue(), new OtpInputStream(out.toByteArray())
+                .read_string());
+    }
+
+    @Test
+    public void acquire_reusesReleasedStream() throws Exception {
+        final OtpOutputStream s = acquire();
+        s.write_atom("junk");
+        release(s);
+        final OtpOutputStream again = acquire();
+        assertSame(s, again);
+        assertEquals(0, again.size());
+        release(again);
+    }
+
+    @Test
+    public void acquire_encodesTerm() throws Exception {
+        final OtpErlangObject o = new OtpErlangTuple(new OtpErlangObject[] {
+                new OtpErlangAtom("ok"), new OtpErlangString("text") });
+        final OtpOutputStream s = acquire(o);
+        assertArrayEquals(new OtpOutputStream(o).toByteArray(), s
+                .toByteArray());
+        release(s);
+    }
+
+    @Test
+    public void release_dropsLargeBuffers() throws Exception {
+        final OtpOutputStream s = acquire(new OtpErlangBinary(
+                new byte[1024 * 1024]));
+        release(s);
+        final OtpOutputStream again = acquire();
+        assertNotSame(s, again);
+        release(again);
+    }
+
+}
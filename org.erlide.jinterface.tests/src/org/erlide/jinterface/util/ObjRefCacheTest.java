@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package org.erlide.jinterface.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangRef;
+
+public class ObjRefCacheTest {
+
+    @Test
+    public void sameObjectSameRef() {
+        final Object obj = new Object();
+        final OtpErlangRef ref = ObjRefCache.registerTarget(obj);
+        assertEquals(ref, ObjRefCache.registerTarget(obj));
+        assertSame(obj, ObjRefCache.getTarget(ref));
+        ObjRefCache.unregisterTarget(ref);
+    }
+
+    @Test
+    public void objectsAreComparedByIdentity() {
+        final String a = new String("text");
+        final String b = new String("text");
+        final OtpErlangRef refA = ObjRefCache.registerTarget(a);
+        final OtpErlangRef refB = ObjRefCache.registerTarget(b);
+        assertFalse(refA.equals(refB));
+        assertSame(a, ObjRefCache.getTarget(refA));
+        assertSame(b, ObjRefCache.getTarget(refB));
+        ObjRefCache.unregisterTarget(refA);
+        ObjRefCache.unregisterTarget(refB);
+    }
+
+    @Test
+    public void unregisterTarget() {
+        final Object obj = new Object();
+        final OtpErlangRef ref = ObjRefCache.registerTarget(obj);
+        ObjRefCache.unregisterTarget(ref);
+        assertNull(ObjRefCache.getTarget(ref));
+        assertFalse(ref.equals(ObjRefCache.registerTarget(obj)));
+        ObjRefCache.unregisterTarget(ObjRefCache.registerTarget(obj));
+    }
+
+    @Test
+    public void nullTarget() {
+        final OtpErlangRef ref = ObjRefCache.registerTarget(null);
+        assertNull(ObjRefCache.getTarget(ref));
+    }
+
+    @Test
+    public void collectedObjectsAreRemoved() throws Exception {
+        final int n = 100;
+        final OtpErlangRef[] refs = new OtpErlangRef[n];
+        final WeakReference<?>[] probes = new WeakReference<?>[n];
+        final int before = ObjRefCache.size();
+        for (int i = 0; i < n; i++) {
+            final Object obj = new Object();
+            refs[i] = ObjRefCache.registerTarget(obj);
+            probes[i] = new WeakReference<Object>(obj);
+        }
+        assertEquals(before + n, ObjRefCache.size());
+
+        // the entries are removed once the collector has enqueued them
+        for (int tries = 0; tries < 100
+                && (!allCleared(probes) || ObjRefCache.size() > before); tries++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertTrue(allCleared(probes));
+        for (int i = 0; i < n; i++) {
+            assertNull(ObjRefCache.getTarget(refs[i]));
+        }
+        assertEquals(before, ObjRefCache.size());
+    }
+
+    private static boolean allCleared(final WeakReference<?>[] probes) {
+        for (final WeakReference<?> probe : probes) {
+            if (probe.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -19,6 +19,7 @@ import org.erlide.jinterface.backend.events.EventDaemon;
 import org.erlide.jinterface.backend.events.LogEventHandler;
 import org.erlide.jinterface.rpc.RpcException;
 import org.erlide.jinterface.rpc.RpcFuture;
+import org.erlide.jinterface.rpc.RpcMultiplexer;
 import org.erlide.jinterface.rpc.RpcResult;
 import org.erlide.jinterface.rpc.RpcUtil;
 import org.erlide.jinterface.util.ErlLogger;
@@ -58,6 +59,7 @@ public class Backend extends OtpNodeStatus {
     private boolean fDebug;
     private final RuntimeInfo fInfo;
     private OtpNode fNode;
+    private RpcMultiplexer rpcMultiplexer;
     private String fPeer;
     private int restarted = 0;
     private boolean stopped = false;
@@ -164,6 +166,13 @@ public class Backend extends OtpNodeStatus {
         }
     }
 
+    /**
+     * Start collecting calls that will be sent to the backend in one go.
+     */
+    public BackendBatch batch() {
+        return new BackendBatch(this);
+    }
+
     public void send(final OtpErlangPid pid, final Object msg) {
         if (!available) {
             return;
@@ -222,6 +231,7 @@ public class Backend extends OtpNodeStatus {
             shellManager.dispose();
         }
 
+        closeRpcMultiplexer();
         if (getNode() != null) {
             getNode().close();
         }
@@ -254,6 +264,7 @@ public class Backend extends OtpNodeStatus {
             ErlLogger.debug("using cookie '%s...'%d (info: '%s')", trimmed,
                     len, cookie);
             fPeer = BackendUtil.buildNodeName(label, true);
+            rpcMultiplexer = new RpcMultiplexer(fNode);
 
             eventBox = getNode().createMbox("rex");
             int tries = 20;
@@ -325,6 +336,17 @@ public class Backend extends OtpNodeStatus {
         return fNode;
     }
 
+    private synchronized RpcMultiplexer getRpcMultiplexer() {
+        return rpcMultiplexer;
+    }
+
+    private synchronized void closeRpcMultiplexer() {
+        if (rpcMultiplexer != null) {
+            rpcMultiplexer.close();
+            rpcMultiplexer = null;
+        }
+    }
+
     private String getScriptId() throws BackendException {
         OtpErlangObject r;
         r = call("init", "script_id", "");
@@ -382,8 +404,8 @@ public class Backend extends OtpNodeStatus {
             final String module, final String fun, final String signature,
             final Object... args0) throws RpcException, SignatureException {
         checkAvailability();
-        return RpcUtil.sendRpcCall(getNode(), getPeer(), gleader, module, fun,
-                signature, args0);
+        return getRpcMultiplexer().sendRpcCall(getPeer(), gleader, module,
+                fun, signature, args0);
     }
 
     protected RpcFuture makeAsyncCall(final String module, final String fun,
@@ -413,8 +435,8 @@ public class Backend extends OtpNodeStatus {
             throws RpcException, SignatureException {
         checkAvailability();
 
-        final RpcFuture future = RpcUtil.sendRpcCall(fNode, fPeer, gleader,
-                module, fun, signature, args);
+        final RpcFuture future = getRpcMultiplexer().sendRpcCall(getPeer(),
+                gleader, module, fun, signature, args);
         final Runnable target = new Runnable() {
             public void run() {
                 OtpErlangObject result;
@@ -440,8 +462,8 @@ public class Backend extends OtpNodeStatus {
             final String fun, final String signature, final Object... args0)
             throws RpcException, SignatureException {
         checkAvailability();
-        final OtpErlangObject result = RpcUtil.rpcCall(getNode(), getPeer(),
-                gleader, module, fun, timeout, signature, args0);
+        final OtpErlangObject result = RpcUtil.rpcCall(getRpcMultiplexer(),
+                getPeer(), gleader, module, fun, timeout, signature, args0);
         return result;
     }
 
@@ -480,6 +502,7 @@ public class Backend extends OtpNodeStatus {
         }
         restarted++;
         ErlLogger.info("restarting runtime for %s", toString());
+        closeRpcMultiplexer();
         if (getNode() != null) {
             getNode().close();
             fNode = null;
@@ -597,6 +620,10 @@ public class Backend extends OtpNodeStatus {
             // final String dir = up ? "up" : "down";
             // ErlLogger.debug(String.format("@@: %s %s %s", node, dir, info));
             setAvailable(up);
+            final RpcMultiplexer mux = getRpcMultiplexer();
+            if (!up && mux != null) {
+                mux.failPending("backend " + node + " is down");
+            }
         }
     }
 
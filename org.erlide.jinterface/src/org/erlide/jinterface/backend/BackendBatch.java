@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available
+ * at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package org.erlide.jinterface.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.erlide.jinterface.rpc.RpcResult;
+import org.erlide.jinterface.rpc.RpcUtil;
+
+import com.ericsson.otp.erlang.OtpErlang;
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.SignatureException;
+
+/**
+ * Collects a number of {M, F, A} calls that are sent to the backend as a
+ * single request and executed in parallel there (see
+ * <code>erlide_batch:multi_call/1</code>).
+ *
+ * <pre>
+ * final RpcResult[] results = backend.batch()
+ *         .add(&quot;erlang&quot;, &quot;length&quot;, &quot;x&quot;, list)
+ *         .add(&quot;lists&quot;, &quot;reverse&quot;, &quot;x&quot;, list).call();
+ * </pre>
+ */
+public class BackendBatch {
+
+    private final Backend backend;
+    private final List<OtpErlangObject> calls;
+
+    BackendBatch(final Backend backend) {
+        this.backend = backend;
+        calls = new ArrayList<OtpErlangObject>();
+    }
+
+    public BackendBatch add(final String m, final String f,
+            final String signature, final Object... args)
+            throws SignatureException {
+        final OtpErlangObject[] eargs = RpcUtil.convertArgs(signature, args);
+        calls.add(OtpErlang.mkTuple(new OtpErlangAtom(m),
+                new OtpErlangAtom(f), new OtpErlangList(eargs)));
+        return this;
+    }
+
+    public int size() {
+        return calls.size();
+    }
+
+    /**
+     * Execute all collected calls. The results are returned in the same order
+     * as the calls were added; a call that failed gets a result that is not
+     * ok, the others are not affected by it.
+     */
+    public RpcResult[] call() throws BackendException {
+        if (calls.isEmpty()) {
+            return new RpcResult[0];
+        }
+        return toResults(backend.call("erlide_batch", "multi_call", "x",
+                getCallList()));
+    }
+
+    /**
+     * Execute all collected calls; the timeout applies to the whole batch.
+     */
+    public RpcResult[] call(final int timeout) throws BackendException {
+        if (calls.isEmpty()) {
+            return new RpcResult[0];
+        }
+        return toResults(backend.call(timeout, "erlide_batch", "multi_call",
+                "x", getCallList()));
+    }
+
+    private OtpErlangList getCallList() {
+        return new OtpErlangList(calls.toArray(new OtpErlangObject[calls
+                .size()]));
+    }
+
+    private RpcResult[] toResults(final OtpErlangObject res)
+            throws BackendException {
+        if (!(res instanceof OtpErlangTuple)
+                || ((OtpErlangTuple) res).arity() != calls.size()) {
+            throw new BackendException("bad batch result: " + res);
+        }
+        final OtpErlangTuple t = (OtpErlangTuple) res;
+        final RpcResult[] results = new RpcResult[t.arity()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = new RpcResult(t.elementAt(i));
+        }
+        return results;
+    }
+}
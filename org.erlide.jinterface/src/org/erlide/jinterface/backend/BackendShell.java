@@ -80,6 +80,11 @@ public class BackendShell {
 
     public class ConsoleEventHandler extends EventHandler {
 
+        @Override
+        public String[] getTopics() {
+            return new String[] { "io_server" };
+        }
+
         @Override
         protected void doHandleMsg(final OtpErlangObject msg) throws Exception {
             final OtpErlangObject event = getStandardEvent(msg, "io_server");
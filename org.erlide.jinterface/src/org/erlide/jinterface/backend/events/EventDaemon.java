@@ -1,7 +1,21 @@
 package org.erlide.jinterface.backend.events;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.erlide.jinterface.backend.Backend;
 import org.erlide.jinterface.backend.BackendListener;
@@ -10,21 +24,46 @@ import org.erlide.jinterface.util.ErlLogger;
 import com.ericsson.otp.erlang.OtpErlangExit;
 import com.ericsson.otp.erlang.OtpErlangObject;
 
+/**
+ * Receives the events sent by the backend and dispatches them to the
+ * registered handlers.
+ * 
+ * Events are only given to the handlers that subscribed to their topic (see
+ * {@link EventHandler#getTopics()}). Each handler has its own queue that is
+ * processed by a small pool of worker threads, so a slow handler doesn't hold
+ * up the others, while a given handler still sees its events in order.
+ */
 public class EventDaemon implements BackendListener {
 
+    private static final int MIN_BATCH = 10;
+    private static final int MAX_BATCH = 500;
+    private static final int HIGH_WATER_MARK = 5000;
+
     private Backend runtime;
     volatile boolean stopped = false;
-    List<EventHandler> handlers = new ArrayList<EventHandler>();
+    private ExecutorService workers;
     final Object handlersLock = new Object();
+    private final Map<EventHandler, HandlerQueue> handlers = new LinkedHashMap<EventHandler, HandlerQueue>();
+    private final ConcurrentMap<String, List<HandlerQueue>> byTopic = new ConcurrentHashMap<String, List<HandlerQueue>>();
+    private final List<HandlerQueue> allTopics = new CopyOnWriteArrayList<HandlerQueue>();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong unhandled = new AtomicLong();
+    private volatile int batchSize = MIN_BATCH;
 
     final static boolean DEBUG = "true".equals(System
             .getProperty("erlide.event.daemon"));
+    private final static int WORKERS = Integer.getInteger(
+            "erlide.event.daemon.workers",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
 
     private final class HandlerJob implements Runnable {
         private final Backend backend;
+        private final ExecutorService pool;
 
-        public HandlerJob(final Backend backend) {
+        public HandlerJob(final Backend backend, final ExecutorService pool) {
             this.backend = backend;
+            this.pool = pool;
         }
 
         public void run() {
@@ -36,8 +75,10 @@ public class EventDaemon implements BackendListener {
                         msg = backend.receiveEvent(200);
                         if (msg != null) {
                             msgs.add(msg);
-                            // if there are more queued events, retrieve not
-                            // more than 10 of them
+                            // if there are more queued events, retrieve some
+                            // of them; the batch grows while we are lagging
+                            // behind and shrinks back when we catch up
+                            final int max = batchSize;
                             int count = 0;
                             do {
                                 msg = backend.receiveEvent(0);
@@ -45,7 +86,12 @@ public class EventDaemon implements BackendListener {
                                     msgs.add(msg);
                                     count++;
                                 }
-                            } while (count < 10 && msg != null && !stopped);
+                            } while (count < max && msg != null && !stopped);
+                            if (count >= max) {
+                                batchSize = Math.min(max * 2, MAX_BATCH);
+                            } else if (count < max / 4) {
+                                batchSize = Math.max(max / 2, MIN_BATCH);
+                            }
                         }
                         if (msgs.size() != 0) {
                             if (DEBUG) {
@@ -53,9 +99,8 @@ public class EventDaemon implements BackendListener {
                                     ErlLogger.debug("MSG: %s", m);
                                 }
                             }
-                            for (final EventHandler handler : getHandlers()) {
-                                handler.handleMsgs(msgs);
-                            }
+                            received.addAndGet(msgs.size());
+                            dispatch(msgs);
                             msgs.clear();
                         }
                     } catch (final OtpErlangExit e) {
@@ -69,8 +114,83 @@ public class EventDaemon implements BackendListener {
                 } while (!stopped);
             } finally {
                 synchronized (handlersLock) {
+                    for (final HandlerQueue q : handlers.values()) {
+                        q.removed = true;
+                    }
                     handlers.clear();
+                    byTopic.clear();
+                    allTopics.clear();
                 }
+                pool.shutdown();
+            }
+        }
+    }
+
+    /*
+     * The events for one handler, in the order they arrived. At most one
+     * worker at a time processes a queue.
+     */
+    private final class HandlerQueue implements Runnable {
+        final EventHandler handler;
+        final String[] topics;
+        private final ConcurrentLinkedQueue<List<OtpErlangObject>> batches = new ConcurrentLinkedQueue<List<OtpErlangObject>>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        final AtomicInteger pending = new AtomicInteger();
+        volatile int maxPending = 0;
+        volatile boolean removed = false;
+        private boolean overloaded = false;
+
+        HandlerQueue(final EventHandler handler) {
+            this.handler = handler;
+            topics = handler.getTopics();
+        }
+
+        void enqueue(final List<OtpErlangObject> msgs) {
+            batches.add(msgs);
+            final int n = pending.addAndGet(msgs.size());
+            if (n > maxPending) {
+                maxPending = n;
+            }
+            if (n > HIGH_WATER_MARK && !overloaded) {
+                overloaded = true;
+                ErlLogger.warn("event handler %s is lagging behind: "
+                        + "%d events queued", handler, n);
+            } else if (n < HIGH_WATER_MARK / 2) {
+                overloaded = false;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    getWorkers().execute(this);
+                } catch (final RuntimeException e) {
+                    // the daemon is shutting down
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        public void run() {
+            try {
+                List<OtpErlangObject> msgs;
+                while ((msgs = batches.poll()) != null) {
+                    if (!removed) {
+                        try {
+                            handler.handleMsgs(msgs);
+                        } catch (final Exception e) {
+                            ErlLogger.warn(e);
+                        }
+                    }
+                    pending.addAndGet(-msgs.size());
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            // events may have been added after we stopped looking
+            if (!batches.isEmpty()) {
+                schedule();
             }
         }
     }
@@ -81,7 +201,18 @@ public class EventDaemon implements BackendListener {
 
     public synchronized void start() {
         stopped = false;
-        new Thread(new HandlerJob(runtime)).start();
+        workers = Executors.newFixedThreadPool(Math.max(1, WORKERS),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "event handler "
+                                + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        new Thread(new HandlerJob(runtime, workers)).start();
         addHandler(new RpcHandler(runtime));
     }
 
@@ -89,6 +220,10 @@ public class EventDaemon implements BackendListener {
         stopped = true;
     }
 
+    synchronized ExecutorService getWorkers() {
+        return workers;
+    }
+
     public void runtimeAdded(final Backend b) {
     }
 
@@ -99,23 +234,137 @@ public class EventDaemon implements BackendListener {
         }
     }
 
+    void dispatch(final List<OtpErlangObject> msgs) {
+        // split the batch per handler, keeping the order of the events
+        final Map<HandlerQueue, List<OtpErlangObject>> split = new IdentityHashMap<HandlerQueue, List<OtpErlangObject>>();
+        for (final OtpErlangObject msg : msgs) {
+            boolean handled = false;
+            final String topic = EventHandler.getTopic(msg);
+            if (topic != null) {
+                final List<HandlerQueue> qs = byTopic.get(topic);
+                if (qs != null) {
+                    for (final HandlerQueue q : qs) {
+                        add(split, q, msg);
+                        handled = true;
+                    }
+                }
+            }
+            for (final HandlerQueue q : allTopics) {
+                add(split, q, msg);
+                handled = true;
+            }
+            if (!handled) {
+                unhandled.incrementAndGet();
+            }
+        }
+        for (final Entry<HandlerQueue, List<OtpErlangObject>> e : split
+                .entrySet()) {
+            e.getKey().enqueue(e.getValue());
+        }
+    }
+
+    private static void add(
+            final Map<HandlerQueue, List<OtpErlangObject>> split,
+            final HandlerQueue q, final OtpErlangObject msg) {
+        List<OtpErlangObject> l = split.get(q);
+        if (l == null) {
+            l = new ArrayList<OtpErlangObject>();
+            split.put(q, l);
+        }
+        l.add(msg);
+    }
+
     public List<EventHandler> getHandlers() {
         synchronized (handlersLock) {
-            return new ArrayList<EventHandler>(handlers);
+            return new ArrayList<EventHandler>(handlers.keySet());
         }
     }
 
     public void addHandler(final EventHandler l) {
         synchronized (handlersLock) {
-            if (!handlers.contains(l)) {
-                handlers.add(l);
+            if (handlers.containsKey(l)) {
+                return;
+            }
+            final HandlerQueue q = new HandlerQueue(l);
+            handlers.put(l, q);
+            if (q.topics == null) {
+                allTopics.add(q);
+            } else {
+                for (final String topic : q.topics) {
+                    List<HandlerQueue> qs = byTopic.get(topic);
+                    if (qs == null) {
+                        qs = new CopyOnWriteArrayList<HandlerQueue>();
+                        byTopic.put(topic, qs);
+                    }
+                    qs.add(q);
+                }
             }
         }
     }
 
     public void removeHandler(final EventHandler l) {
         synchronized (handlersLock) {
-            handlers.remove(l);
+            final HandlerQueue q = handlers.remove(l);
+            if (q == null) {
+                return;
+            }
+            q.removed = true;
+            if (q.topics == null) {
+                allTopics.remove(q);
+            } else {
+                for (final String topic : q.topics) {
+                    final List<HandlerQueue> qs = byTopic.get(topic);
+                    if (qs != null) {
+                        qs.remove(q);
+                        if (qs.isEmpty()) {
+                            byTopic.remove(topic);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of events received since the daemon was started.
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * @return the number of events that no handler was interested in.
+     */
+    public long getUnhandledCount() {
+        return unhandled.get();
+    }
+
+    /**
+     * @return the current maximum number of events that are retrieved at once.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return the number of events waiting to be processed by the handler, or
+     *         -1 if it is not registered.
+     */
+    public int getPendingCount(final EventHandler l) {
+        synchronized (handlersLock) {
+            final HandlerQueue q = handlers.get(l);
+            return q == null ? -1 : q.pending.get();
+        }
+    }
+
+    /**
+     * @return the largest number of events that have been waiting for the
+     *         handler at any time, or -1 if it is not registered.
+     */
+    public int getMaxPendingCount(final EventHandler l) {
+        synchronized (handlersLock) {
+            final HandlerQueue q = handlers.get(l);
+            return q == null ? -1 : q.maxPending;
         }
     }
 }
@@ -28,6 +28,37 @@ public abstract class EventHandler {
         }
     }
 
+    /**
+     * The topics this handler is interested in: the tag of standard events
+     * (<code>{event, Tag, Data}</code>) or the first atom of other messages.
+     * The default is to receive all events.
+     * 
+     * @return the topics, or null for all of them
+     */
+    public String[] getTopics() {
+        return null;
+    }
+
+    /**
+     * @return the topic of the message (see {@link #getTopics()}), or null if
+     *         it doesn't have any
+     */
+    public static String getTopic(final OtpErlangObject msg) {
+        if (!(msg instanceof OtpErlangTuple)) {
+            return null;
+        }
+        final OtpErlangTuple t = (OtpErlangTuple) msg;
+        if (t.arity() == 0 || !(t.elementAt(0) instanceof OtpErlangAtom)) {
+            return null;
+        }
+        final String tag = ((OtpErlangAtom) t.elementAt(0)).atomValue();
+        if ("event".equals(tag) && t.arity() > 1
+                && t.elementAt(1) instanceof OtpErlangAtom) {
+            return ((OtpErlangAtom) t.elementAt(1)).atomValue();
+        }
+        return tag;
+    }
+
     protected abstract void doHandleMsg(OtpErlangObject msg) throws Exception;
 
     public static OtpErlangObject getStandardEvent(final OtpErlangObject msg,
@@ -12,6 +12,11 @@ import com.ericsson.otp.erlang.OtpErlangTuple;
 
 public class LogEventHandler extends EventHandler {
 
+    @Override
+    public String[] getTopics() {
+        return new String[] { "log", "erlang_log" };
+    }
+
     @Override
     protected void doHandleMsg(final OtpErlangObject msg) throws Exception {
         handleJavaLog(msg);
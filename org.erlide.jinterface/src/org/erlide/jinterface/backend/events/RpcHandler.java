@@ -24,6 +24,11 @@ public final class RpcHandler extends EventHandler {
         fRuntime = runtime;
     }
 
+    @Override
+    public String[] getTopics() {
+        return new String[] { "call", "uicall", "cast" };
+    }
+
     @Override
     protected void doHandleMsg(final OtpErlangObject msg) throws Exception {
         // ErlLogger.debug("-- RPC: " + msg);
@@ -10,18 +10,47 @@
  *******************************************************************************/
 package org.erlide.jinterface.rpc;
 
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpMbox;
 
 public class RpcFuture {
 
     private final OtpMbox mbox;
-    private OtpErlangObject result = null;
+    private volatile OtpErlangObject result = null;
+    private volatile String error = null;
     private final String env;
+    private final CountDownLatch done;
+    private BlockingQueue<RpcFuture> completion = null;
 
     public RpcFuture(final OtpMbox mbox, final String env) {
         this.mbox = mbox;
         this.env = env;
+        done = null;
+    }
+
+    /**
+     * Create a future that will be completed by a {@link RpcMultiplexer}
+     * instead of waiting on its own mailbox.
+     */
+    RpcFuture(final String env) {
+        mbox = null;
+        this.env = env;
+        done = new CountDownLatch(1);
+    }
+
+    /**
+     * Create a future for a result that is already known, for example because
+     * it was cached.
+     */
+    public static RpcFuture forResult(final OtpErlangObject value,
+            final String env) {
+        final RpcFuture future = new RpcFuture(env);
+        future.set(value);
+        return future;
     }
 
     public OtpErlangObject get() throws RpcException {
@@ -35,7 +64,23 @@ public class RpcFuture {
         if (isDone()) {
             return result;
         }
-        result = RpcUtil.getRpcResult(mbox, timeout, env);
+        if (mbox != null) {
+            result = RpcUtil.getRpcResult(mbox, timeout, env);
+            return result;
+        }
+        try {
+            if (timeout == RpcUtil.INFINITY) {
+                done.await();
+            } else if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                throw new RpcTimeoutException(env);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RpcException(e);
+        }
+        if (error != null) {
+            throw new RpcException(error);
+        }
         return result;
     }
 
@@ -43,4 +88,45 @@ public class RpcFuture {
         return result != null;
     }
 
+    /**
+     * Add this future to the queue as soon as it is completed (or failed), so
+     * that a caller waiting for many calls can process them in the order they
+     * finish. Only futures created by a {@link RpcMultiplexer} support this.
+     */
+    public void setCompletionQueue(final BlockingQueue<RpcFuture> queue) {
+        if (done == null) {
+            throw new UnsupportedOperationException(
+                    "completion queue needs a multiplexed call (" + env + ")");
+        }
+        synchronized (this) {
+            if (done.getCount() > 0) {
+                completion = queue;
+                return;
+            }
+        }
+        queue.add(this);
+    }
+
+    void set(final OtpErlangObject value) {
+        result = value;
+        complete();
+    }
+
+    void fail(final String reason) {
+        error = reason + " (" + env + ")";
+        complete();
+    }
+
+    private void complete() {
+        final BlockingQueue<RpcFuture> queue;
+        synchronized (this) {
+            done.countDown();
+            queue = completion;
+            completion = null;
+        }
+        if (queue != null) {
+            queue.add(this);
+        }
+    }
+
 }
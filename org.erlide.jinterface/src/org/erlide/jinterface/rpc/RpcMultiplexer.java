@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available
+ * at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package org.erlide.jinterface.rpc;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.erlide.jinterface.util.ErlLogger;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangRef;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+import com.ericsson.otp.erlang.SignatureException;
+
+/**
+ * Sends RPCs to a remote node through a single long-lived mailbox.
+ *
+ * Each request is sent to <code>rex</code> as a gen_server call tagged with a
+ * fresh reference, so the replies ({Ref, Result}) can be matched against a
+ * table of pending calls and the corresponding {@link RpcFuture} completed.
+ * Callers don't need a mailbox of their own and don't serialize on any lock.
+ */
+public class RpcMultiplexer implements Runnable {
+
+    private static final OtpErlangAtom STOP = new OtpErlangAtom(
+            "$rpc_multiplexer_stop");
+
+    private final OtpNode node;
+    private final OtpMbox mbox;
+    private final ConcurrentMap<OtpErlangRef, RpcFuture> pending;
+    private volatile boolean stopped = false;
+
+    public RpcMultiplexer(final OtpNode node) {
+        this.node = node;
+        mbox = node.createMbox();
+        pending = new ConcurrentHashMap<OtpErlangRef, RpcFuture>();
+
+        final Thread thread = new Thread(this, "rpc multiplexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Send a RPC request and return a future that will be completed when the
+     * reply arrives.
+     */
+    public RpcFuture sendRpcCall(final String peer,
+            final OtpErlangObject gleader, final String module,
+            final String fun, final String signature, final Object... args0)
+            throws SignatureException {
+        final OtpErlangObject[] args = RpcUtil.convertArgs(signature, args0);
+
+        final OtpErlangRef ref = node.createRef();
+        final RpcFuture future = new RpcFuture(module + ":" + fun + "/"
+                + args.length);
+        if (stopped) {
+            future.fail("rpc multiplexer is closed");
+            return future;
+        }
+        pending.put(ref, future);
+        if (stopped && pending.remove(ref) != null) {
+            future.fail("rpc multiplexer is closed");
+            return future;
+        }
+
+        final OtpErlangObject msg = RpcUtil.buildRpcGenCall(mbox.self(), ref,
+                gleader, module, fun, args);
+        mbox.send("rex", peer, msg);
+        if (RpcUtil.CHECK_RPC) {
+            ErlLogger.debug("RPC " + ref + "=> " + msg);
+        }
+        return future;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Fail all calls that are still waiting for a reply, for example because
+     * the remote node went down.
+     */
+    public void failPending(final String reason) {
+        final Iterator<RpcFuture> it = pending.values().iterator();
+        while (it.hasNext()) {
+            final RpcFuture future = it.next();
+            it.remove();
+            future.fail(reason);
+        }
+    }
+
+    public void close() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        // wake up the receiver thread
+        mbox.send(mbox.self(), STOP);
+        failPending("rpc multiplexer is closed");
+    }
+
+    public void run() {
+        try {
+            while (!stopped) {
+                final OtpErlangObject msg = mbox.receive();
+                if (msg instanceof OtpErlangTuple) {
+                    dispatch((OtpErlangTuple) msg);
+                }
+            }
+        } catch (final Exception e) {
+            ErlLogger.warn(e);
+            stopped = true;
+            failPending(e.getMessage());
+        } finally {
+            mbox.close();
+        }
+    }
+
+    private void dispatch(final OtpErlangTuple reply) {
+        if (reply.arity() != 2
+                || !(reply.elementAt(0) instanceof OtpErlangRef)) {
+            ErlLogger.warn("unexpected message in rpc multiplexer: %s", reply);
+            return;
+        }
+        final OtpErlangRef ref = (OtpErlangRef) reply.elementAt(0);
+        final RpcFuture future = pending.remove(ref);
+        if (RpcUtil.CHECK_RPC) {
+            ErlLogger.debug("RPC " + ref + "<= " + reply.elementAt(1));
+        }
+        if (future != null) {
+            future.set(reply.elementAt(1));
+        }
+    }
+}
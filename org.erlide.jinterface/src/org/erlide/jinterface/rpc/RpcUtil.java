@@ -20,6 +20,7 @@ import com.ericsson.otp.erlang.OtpErlangExit;
 import com.ericsson.otp.erlang.OtpErlangList;
 import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangPid;
+import com.ericsson.otp.erlang.OtpErlangRef;
 import com.ericsson.otp.erlang.OtpErlangTuple;
 import com.ericsson.otp.erlang.OtpMbox;
 import com.ericsson.otp.erlang.OtpNode;
@@ -30,7 +31,7 @@ public final class RpcUtil {
     public static final int INFINITY = -1;
 
     // use this for debugging
-    private static final boolean CHECK_RPC = Boolean
+    static final boolean CHECK_RPC = Boolean
             .getBoolean("org.erlide.checkrpc");
 
     /**
@@ -152,7 +153,7 @@ public final class RpcUtil {
      * @return
      * @throws RpcException
      */
-    public static synchronized RpcFuture sendRpcCall(final OtpNode node,
+    public static RpcFuture sendRpcCall(final OtpNode node,
             final String peer, final OtpErlangObject gleader,
             final String module, final String fun, final String signature,
             final Object... args0) throws SignatureException {
@@ -168,6 +169,24 @@ public final class RpcUtil {
         return new RpcFuture(mbox, module + ":" + fun + "/" + args0.length);
     }
 
+    /**
+     * Make a regular RPC through the given multiplexer, with the given
+     * arguments.
+     */
+    public static OtpErlangObject rpcCall(final RpcMultiplexer mux,
+            final String peer, final OtpErlangObject gleader,
+            final String module, final String fun, final int timeout,
+            final String signature, final Object... args0) throws RpcException,
+            SignatureException {
+        final RpcFuture future = mux.sendRpcCall(peer, gleader, module, fun,
+                signature, args0);
+        final OtpErlangObject result = future.get(timeout);
+        if (isBadRpc(result)) {
+            throw new RpcException(result.toString());
+        }
+        return result;
+    }
+
     /**
      * Retrieve the result of a RPC.
      * 
@@ -240,6 +259,21 @@ public final class RpcUtil {
                 OtpErlang.mkTuple(new OtpErlangAtom("call"), m, f, a, gleader));
     }
 
+    /**
+     * Build a gen_server call to rex, so that the reply is tagged with the
+     * given reference: {'$gen_call', {Pid, Ref}, {call, M, F, A, GLeader}}
+     */
+    static OtpErlangObject buildRpcGenCall(final OtpErlangPid pid,
+            final OtpErlangRef ref, final OtpErlangObject gleader,
+            final String module, final String fun, final OtpErlangObject[] args) {
+        final OtpErlangObject m = new OtpErlangAtom(module);
+        final OtpErlangObject f = new OtpErlangAtom(fun);
+        final OtpErlangObject a = new OtpErlangList(args);
+        return OtpErlang.mkTuple(new OtpErlangAtom("$gen_call"),
+                OtpErlang.mkTuple(pid, ref),
+                OtpErlang.mkTuple(new OtpErlangAtom("call"), m, f, a, gleader));
+    }
+
     /**
      * Make a RPC but don't wait for any result.
      * 
@@ -265,7 +299,7 @@ public final class RpcUtil {
         }
     }
 
-    private static OtpErlangObject[] convertArgs(final String signature,
+    public static OtpErlangObject[] convertArgs(final String signature,
             Object... args0) throws SignatureException {
         if (args0 == null) {
             args0 = new OtpErlangObject[] {};
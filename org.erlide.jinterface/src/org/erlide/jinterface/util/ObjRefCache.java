@@ -10,46 +10,118 @@
  *******************************************************************************/
 package org.erlide.jinterface.util;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.ericsson.otp.erlang.OtpErlangRef;
 
+/**
+ * Maps Java objects that are passed to Erlang to references and back. Objects
+ * are compared by identity and are only weakly held; the entries of objects
+ * that have been garbage collected are removed automatically.
+ */
 public class ObjRefCache {
 
-    private static Map<OtpErlangRef, WeakReference<Object>> objects = new HashMap<OtpErlangRef, WeakReference<Object>>();
+    private static final ConcurrentMap<OtpErlangRef, Target> objects = new ConcurrentHashMap<OtpErlangRef, Target>();
+    private static final ConcurrentMap<Target, OtpErlangRef> refs = new ConcurrentHashMap<Target, OtpErlangRef>();
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    private static final Object lock = new Object();
     private static int refid0 = 0;
     private static int refid1 = 0;
     private static int refid2 = 0;
 
+    /*
+     * A weak reference to a registered object. Two targets are equal if they
+     * refer to the same live object, so a temporary target can be used to
+     * look up the reference of an object.
+     */
+    private static final class Target extends WeakReference<Object> {
+        final OtpErlangRef ref;
+        private final int hash;
+
+        Target(final Object obj, final OtpErlangRef ref,
+                final ReferenceQueue<Object> queue) {
+            super(obj, queue);
+            this.ref = ref;
+            hash = System.identityHashCode(obj);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Target)) {
+                return false;
+            }
+            final Object obj = get();
+            return obj != null && obj == ((Target) o).get();
+        }
+    }
+
     public static OtpErlangRef registerTarget(final Object obj) {
         if (obj == null) {
             return new OtpErlangRef(JRpcUtil.REF_NODE, new int[] { 0, 0, 0 }, 0);
         }
 
-        final Set<Entry<OtpErlangRef, WeakReference<Object>>> entries = objects
-                .entrySet();
-        for (final Entry<OtpErlangRef, WeakReference<Object>> entry : entries) {
-            if (entry.getValue().get() == obj) {
-                return entry.getKey();
+        expunge();
+        final Target key = new Target(obj, null, null);
+        OtpErlangRef ref = refs.get(key);
+        if (ref != null) {
+            return ref;
+        }
+        synchronized (lock) {
+            ref = refs.get(key);
+            if (ref == null) {
+                ref = mkref();
+                final Target target = new Target(obj, ref, collected);
+                objects.put(ref, target);
+                refs.put(target, ref);
             }
         }
-        final OtpErlangRef ref = mkref();
-        objects.put(ref, new WeakReference<Object>(obj));
         return ref;
     }
 
     public static Object getTarget(final OtpErlangRef ref) {
-        return objects.get(ref).get();
+        final Target target = objects.get(ref);
+        return target == null ? null : target.get();
     }
 
     public static void unregisterTarget(final OtpErlangRef ref) {
-        objects.remove(ref);
+        final Target target = objects.remove(ref);
+        if (target != null) {
+            refs.remove(target, ref);
+        }
+    }
+
+    /**
+     * @return the number of registered objects, including the ones that have
+     *         been collected but not yet removed
+     */
+    public static int size() {
+        expunge();
+        return objects.size();
+    }
+
+    // remove the entries of objects that have been garbage collected
+    private static void expunge() {
+        Reference<?> r;
+        while ((r = collected.poll()) != null) {
+            final Target target = (Target) r;
+            objects.remove(target.ref, target);
+            refs.remove(target, target.ref);
+        }
     }
 
+    // called with lock held
     static OtpErlangRef mkref() {
         final int max = 0x7fffffff;
         if (refid2 < max) {
@@ -9,6 +9,7 @@
          get_all_links_to_other/0,
          get_exported/2,
          get_modules/2,
+         get_all_modules/0,
          get_proposals/3,
          get_all_doc_dirs/0]).
 
@@ -43,6 +44,14 @@ get_modules(Prefix, Modules) when is_list(Prefix), is_list(Modules) ->
 	L = [I || I <- M, lists:prefix(Prefix, I)],
     lists:usort(L).
 
+%% all the modules that can be loaded, not only the loaded ones
+get_all_modules() ->
+    Loaded = [atom_to_list(I) || {I, _} <- code:all_loaded()],
+    InPath = [filename:basename(F, ".beam") ||
+                 D <- code:get_path(),
+                 F <- filelib:wildcard("*.beam", D)],
+    lists:usort(Loaded ++ InPath).
+
 find_tags(L, Fun) ->
      lists:filter(Fun, L).
 
@@ -29,7 +29,8 @@
 -export([
      start/1,
      start/2,
-     call/3
+     call/3,
+     multi_call/1
     ]).
 
 -record(state, {queue = queue:new(), max=1, crt=0}).
@@ -55,11 +56,35 @@ call(Name, Fun, Args) when is_atom(Name) ->
       Result
   end.
 
+%% Execute a list of {M, F, A} calls in parallel and return their results as
+%% a tuple, in the same order as the calls. A call that fails returns
+%% {badrpc, {'EXIT', Reason}}, just like rpc:call/4 would.
+%% A tuple is returned so that a list of small integers can't be mistaken for
+%% a string on the Java side.
+multi_call(Calls) when is_list(Calls) ->
+  Self = self(),
+  Refs = [begin
+            Ref = make_ref(),
+            spawn(fun() -> Self ! {Ref, do_call(Call)} end),
+            Ref
+          end || Call <- Calls],
+  list_to_tuple([receive {Ref, Result} -> Result end || Ref <- Refs]).
+
 
 %%
 %% Local Functions
 %%
 
+do_call({M, F, A}) ->
+  case catch apply(M, F, A) of
+    {'EXIT', _}=Error ->
+      {badrpc, Error};
+    Result ->
+      Result
+  end;
+do_call(Other) ->
+  {badrpc, {'EXIT', {badarg, Other}}}.
+
 loop(#state{}=State) ->
   receive
     done ->
@@ -25,12 +25,13 @@
 %% called from Java
 -export([start/0, 
          stop/0,
-         find_refs/3]).
+         find_refs/3,
+         start_find_refs/3,
+         cancel_find_refs/1]).
 
 %% called from Erlang
 -export([remove_module/1,
-         add_module_refs/2,
-         check_pattern/6]).
+         add_module_refs/2]).
 
 
 %% for testing
@@ -49,8 +50,18 @@
 
 -define(SERVER, erlide_search_server).
 
--record(state, {modules=[], dummy}). %% FIXME still too simple data mode
--record(module, {scanner_name, module_name, refs}).
+%% streaming searches: modules read per group, refs per event
+-define(STREAM_GROUP, 20).
+-define(STREAM_CHUNK, 200).
+
+%% The references are kept in an inverted index, so that a search only
+%% looks at the references that can match: refs holds
+%% {{IndexKey, ScannerName}, [#ref{}]}, ordered so that all the modules
+%% with a given key are next to each other; modules holds
+%% {ScannerName, [IndexKey]}, so that a module can be taken out again.
+%% A module is indexed from its .refs file the first time it is part of a
+%% search, and again each time it is parsed.
+-record(state, {modules, refs}).
 
 %%
 %% API Functions
@@ -74,13 +85,56 @@ modules() ->
     server_cmd(modules).
 
 %% modules is {ScannerName, ModulePath}
+%% The search runs in the calling process (and its workers), so that
+%% searches don't wait for each other; only adding modules to the index
+%% goes through the server.
 find_refs(Pattern, Modules, StateDir) 
   when is_tuple(Pattern), is_list(Modules), is_list(StateDir) ->
     find_refs([Pattern], Modules, StateDir);
 find_refs(Pattern, Modules, StateDir) 
   when is_list(Pattern), is_list(Modules), is_list(StateDir) ->
-    R = server_cmd(find_refs, {Pattern, Modules, StateDir}),
-    R.
+    start(),
+    State = server_cmd(tables),
+    try
+        do_find_refs(Modules, Pattern, StateDir, State)
+    catch
+        _:Exception ->
+            {error, Exception, erlang:get_stacktrace()}
+    end.
+
+%% Search in the background, sending the results as they are found:
+%% {SearchPid, refs, Refs} events, then {SearchPid, done, Chunks, Result},
+%% where Chunks is the number of refs events sent (they may arrive after
+%% the done event) and Result is ok or {error, Reason} (then Chunks is 0,
+%% the search is over anyway). A search that dies before it is done sends
+%% {SearchPid, done, 0, {error, Reason}} too. Returns {ok, SearchPid}.
+start_find_refs(Pattern, Modules, StateDir) 
+  when is_tuple(Pattern), is_list(Modules), is_list(StateDir) ->
+    start_find_refs([Pattern], Modules, StateDir);
+start_find_refs(Pattern, Modules, StateDir) 
+  when is_list(Pattern), is_list(Modules), is_list(StateDir) ->
+    start(),
+    State = server_cmd(tables),
+    Self = self(),
+    Watcher = spawn(fun() ->
+                            {Pid, MRef} =
+                                spawn_monitor(fun() ->
+                                                      stream_refs(Pattern,
+                                                                  Modules,
+                                                                  StateDir,
+                                                                  State)
+                                              end),
+                            Self ! {search_started, self(), Pid},
+                            watch_search(Pid, MRef)
+                    end),
+    receive
+        {search_started, Watcher, Pid} ->
+            {ok, Pid}
+    end.
+
+cancel_find_refs(Pid) when is_pid(Pid) ->
+    exit(Pid, kill),
+    ok.
 
 remove_module(ScannerName) ->
     server_cmd(remove_module, ScannerName).
@@ -99,7 +153,7 @@ start(undefined) ->
                   erlang:yield(),
                   erlang:register(?SERVER, self()),
                   Self ! started,
-                  loop(#state{})
+                  loop(init_state())
           end),
     receive
         started ->
@@ -170,50 +224,84 @@ cmd(Cmd, From, Args, State) ->
 reply(Cmd, From, R) ->
     From ! {Cmd, self(), R}.
 
+init_state() ->
+    #state{modules=ets:new(erlide_search_modules, [set, protected]),
+           refs=ets:new(erlide_search_refs, [ordered_set, protected])}.
+
 do_cmd(add_module_refs, {ScannerName, Refs}, State) ->
-    do_add_module_refs(ScannerName, Refs, State);
-do_cmd(find_refs, {Ref, Modules, StateDir}, State) ->
-    ?D(Ref),
-    ?D(Modules),
-    ?D(State),
-    R = do_find_refs(Modules, Ref, StateDir, State, []),
-    ?D(R),
-    R;
-do_cmd(remove_module, Module, #state{modules=Modules0} = State) ->
-    Modules1 = lists:keydelete(Module, #module.scanner_name, Modules0),
-    State#state{modules=Modules1};
-do_cmd(state, _, State) ->
+    index_module(ScannerName, Refs, State),
+    State;
+do_cmd(add_new_module_refs, {ScannerName, Refs},
+       #state{modules=Modules} = State) ->
+    %% refs read from disk by a search: a parse done meanwhile wins
+    case ets:member(Modules, ScannerName) of
+        true ->
+            ok;
+        false ->
+            index_module(ScannerName, Refs, State)
+    end,
+    State;
+do_cmd(tables, _, State) ->
     {State, State};
+do_cmd(remove_module, ScannerName, State) ->
+    unindex_module(ScannerName, State),
+    State;
+do_cmd(state, _, #state{modules=Modules, refs=Refs} = State) ->
+    {[{modules, ets:info(Modules, size)}, {keys, ets:info(Refs, size)}],
+     State};
 do_cmd(modules, _, #state{modules=Modules} = State) ->
-    Names = [M || #module{scanner_name=M} <- Modules],
+    Names = ets:select(Modules, [{{'$1', '_'}, [], ['$1']}]),
     {Names, State}.
 
-do_find_refs([], _, _, State, Acc) ->
-    {{ok, Acc}, State};
-do_find_refs([{ScannerName, ModulePath} | Rest], Pattern, StateDir, 
-             #state{modules=Modules} = State, Acc0) ->
-    ?D(ScannerName),
-    Refs = get_module_refs(ScannerName, ModulePath, StateDir, Modules),
-    Mod = get_module_name(ModulePath),
-    Acc1 = find_data(Refs, Pattern, Mod, ModulePath, Acc0),
-    ?D(Acc1),
-    do_find_refs(Rest, Pattern, StateDir, State, Acc1).
+do_find_refs(Modules, Pattern, StateDir, State) ->
+    ?D(Pattern),
+    Lookups = lists:append([pattern_lookups(P) || P <- Pattern]),
+    {Known, Unknown} = partition_indexed(Modules, State),
+    Found = find_known(Known, Lookups, State)
+        ++ find_unknown(Unknown, Lookups, StateDir, State),
+    {ok, lists:usort(Found)}.
 
 get_module_name(ModulePath) ->
     L = filename:rootname(filename:basename(ModulePath)),
     list_to_atom(L).
 
-find_data([], _, _, _, Acc) ->
+find_data([], _, _, Acc) ->
+    Acc;
+find_data([{ScannerName, Refs} | Rest], Filter, Scope, Acc) ->
+    case dict:find(ScannerName, Scope) of
+        {ok, ModulePath} ->
+            NewAcc = find_data_in_module(Refs, Filter, ModulePath, Acc),
+            find_data(Rest, Filter, Scope, NewAcc);
+        error ->
+            find_data(Rest, Filter, Scope, Acc)
+    end.
+
+find_data_in_module(Refs, {module, Mod}, M, Acc) ->
+    case get_module_name(M) of
+        Mod ->
+            find_data_in_module(Refs, any, M, Acc);
+        _ ->
+            Acc
+    end;
+find_data_in_module([], _, _, Acc) ->
     Acc;
-find_data([#ref{function=F, arity=A, clause=C, data=D, offset=O, length=L, sub_clause=S} | Rest],
-          Pattern, Mod, M, Acc) ->
-    NewAcc = case check_pattern(Pattern, Mod, D, F, A, C) of
+find_data_in_module([#ref{function=F, arity=A, clause=C, data=D, offset=O,
+                          length=L, sub_clause=S} = Ref | Rest],
+                    Filter, M, Acc) ->
+    NewAcc = case check_filter(Filter, Ref) of
                  true ->
                      [{M, F, A, C, S, O, L, is_def(D)} | Acc];
                  false ->
                      Acc
              end,
-    find_data(Rest, Pattern, Mod, M, NewAcc).
+    find_data_in_module(Rest, Filter, M, NewAcc).
+
+check_filter(any, _) ->
+    true;
+check_filter({clause, F, A, C}, #ref{function=F, arity=A, clause=C}) ->
+    true;
+check_filter(_, _) ->
+    false.
 
 is_def(#function_def{}) -> true;
 is_def(#macro_def{}) -> true;
@@ -222,49 +310,230 @@ is_def(#module_def{}) -> true;
 is_def(#var_def{}) -> true;
 is_def(_) -> false.
 
-check_pattern(Pattern, Mod, #local_call{function=F, arity=A}, _, _, _)->
-    lists:member(#external_call{module=Mod, function=F, arity=A}, Pattern);
-check_pattern(Pattern, Mod, #function_def{function=F, arity=A} = FD, _, _, _)->
-    lists:member(FD, Pattern) orelse
-		lists:member(#function_def_mod{module=Mod, function=F, arity=A}, Pattern);
-check_pattern(Pattern, Mod, #type_ref{module='_', type=T}, _, _, _) ->
-    lists:member(#type_ref{module=Mod, type=T}, Pattern);
-check_pattern(Pattern, _Mod, #var_ref{}=VR, F, A, C) ->
-	check_var_pattern(Pattern, VR, F, A, C);
-check_pattern(Pattern, _Mod, #var_def{}=VD, F, A, C) ->
-	check_var_pattern(Pattern, VD, F, A, C);
-check_pattern(Pattern, _Mod, D, _, _, _) ->
-    lists:member(D, Pattern).
-
-check_var_pattern([], _, _, _, _) ->
-	false;
-check_var_pattern([#var_pattern{vardefref=VL, function=F, arity=A, clause=C} | Rest], V, F, A, C) ->
-	case lists:member(V, VL) of
-		true -> true;
-		false -> check_var_pattern(Rest, V, F, A, C)
-	end;
-check_var_pattern([_ | Rest], V, F, A, C) ->
-	check_var_pattern(Rest, V, F, A, C).
-
-get_module_refs(ScannerName, ModulePath, StateDir, Modules) ->
-    ?D(Modules),
-    case lists:keysearch(ScannerName, #module.scanner_name, Modules) of
-        {value, #module{refs=Refs}} ->
-            ?D(ye),
-            Refs;
-        false ->
-            ?D(ok),
-            read_module_refs(ScannerName, ModulePath, StateDir)
+%% The keys a reference is indexed under. References that only match
+%% patterns of another kind (local calls match external call patterns on
+%% the same module, and so on) get a key of their own, so that they aren't
+%% found by a pattern that is equal to them.
+index_key(#local_call{function=F, arity=A}) ->
+    {'$local_call', F, A};
+index_key(#function_def{function=F, arity=A}) ->
+    {'$function_def', F, A};
+index_key(#type_ref{module='_', type=T}) ->
+    {'$local_type_ref', T};
+index_key(#var_ref{}=VR) ->
+    {'$var', VR};
+index_key(#var_def{}=VD) ->
+    {'$var', VD};
+index_key(D) ->
+    D.
+
+%% Where to look for a pattern: a list of {IndexKey, Filter}, the filter
+%% telling which of the references found actually match.
+pattern_lookups(#external_call{module=Mod, function=F, arity=A} = P) ->
+    [{P, any}, {{'$local_call', F, A}, {module, Mod}}];
+pattern_lookups(#function_def{function=F, arity=A}) ->
+    [{{'$function_def', F, A}, any}];
+pattern_lookups(#function_def_mod{module=Mod, function=F, arity=A} = P) ->
+    [{P, any}, {{'$function_def', F, A}, {module, Mod}}];
+pattern_lookups(#type_ref{module=Mod, type=T} = P) ->
+    [{P, any}, {{'$local_type_ref', T}, {module, Mod}}];
+pattern_lookups(#var_pattern{vardefref=VL, function=F, arity=A, clause=C}) ->
+    [{{'$var', V}, {clause, F, A, C}} || V <- VL];
+pattern_lookups(P) ->
+    [{P, any}].
+
+%% All the modules having references with the key, as {ScannerName, Refs}.
+%% The keys are {IndexKey, ScannerName} and numbers sort before atoms, so
+%% this starts right before the first module with the key.
+lookup(Key, #state{refs=Refs}) ->
+    lookup(Key, ets:next(Refs, {Key, 0}), Refs, []).
+
+lookup(Key, {Key, ScannerName} = K, Refs, Acc) ->
+    %% searches run beside the server, so the entry may just have gone
+    case ets:lookup(Refs, K) of
+        [{K, ModuleRefs}] ->
+            lookup(Key, ets:next(Refs, K), Refs,
+                   [{ScannerName, ModuleRefs} | Acc]);
+        [] ->
+            lookup(Key, ets:next(Refs, K), Refs, Acc)
+    end;
+lookup(_, _, _, Acc) ->
+    Acc.
+
+%% Streaming search, run in its own process. The modules that are already
+%% indexed are searched all at once; the others are read and indexed a
+%% group at a time, sending what was found in each group.
+stream_refs(Pattern, Modules, StateDir, State) ->
+    Lookups = lists:append([pattern_lookups(P) || P <- Pattern]),
+    {Known, Unknown} = partition_indexed(Modules, State),
+    {Chunks, Status} =
+        try
+            C0 = send_refs(find_known(Known, Lookups, State), 0),
+            C1 = stream_unknown(Unknown, Lookups, StateDir, State, C0),
+            {C1, ok}
+        catch
+            _:Error ->
+                {0, {error, Error}}
+        end,
+    erlide_jrpc:event(find_refs, {self(), done, Chunks, Status}).
+
+%% the done event is sent by the search itself when it ends normally
+watch_search(Pid, MRef) ->
+    receive
+        {'DOWN', MRef, process, Pid, normal} ->
+            ok;
+        {'DOWN', MRef, process, Pid, Reason} ->
+            erlide_jrpc:event(find_refs, {Pid, done, 0, {error, Reason}})
     end.
 
+partition_indexed(Modules, #state{modules=Indexed}) ->
+    lists:partition(fun({ScannerName, _}) ->
+                            ets:member(Indexed, ScannerName)
+                    end, Modules).
+
+find_known([], _, _) ->
+    [];
+find_known(Modules, Lookups, State) ->
+    Scope = dict:from_list(Modules),
+    lists:usort(lists:foldl(fun({Key, Filter}, Acc) ->
+                                    find_data(lookup(Key, State), Filter,
+                                              Scope, Acc)
+                            end, [], Lookups)).
+
+stream_unknown([], _, _, _, Chunks) ->
+    Chunks;
+stream_unknown(Modules, Lookups, StateDir, State, Chunks) ->
+    {Group, Rest} = split(?STREAM_GROUP * workers(), Modules),
+    Found = find_unknown(Group, Lookups, StateDir, State),
+    NewChunks = send_refs(lists:usort(Found), Chunks),
+    stream_unknown(Rest, Lookups, StateDir, State, NewChunks).
+
+%% The modules that aren't indexed yet have to be read from disk, which is
+%% where the time goes, so they are shared among a few workers.
+find_unknown(Modules, Lookups, StateDir, State) ->
+    lists:append(pmap(fun(Slice) ->
+                              lists:foldl(fun(M, Acc) ->
+                                                  find_in_module(M, Lookups,
+                                                                 StateDir,
+                                                                 State, Acc)
+                                          end, [], Slice)
+                      end, slices(Modules, workers()))).
+
+find_in_module({ScannerName, ModulePath}, Lookups, StateDir,
+               #state{refs=Index}, Acc) ->
+    Refs = read_module_refs(ScannerName, ModulePath, StateDir),
+    server_cmd(add_new_module_refs, {ScannerName, Refs}),
+    lists:foldl(fun({Key, Filter}, Acc1) ->
+                        case ets:lookup(Index, {Key, ScannerName}) of
+                            [{_, ModuleRefs}] ->
+                                find_data_in_module(ModuleRefs, Filter,
+                                                    ModulePath, Acc1);
+                            [] ->
+                                Acc1
+                        end
+                end, Acc, Lookups).
+
+%% send the refs in chunks that don't split a module (the refs are sorted
+%% by module); returns the number of chunks sent so far
+send_refs([], Chunks) ->
+    Chunks;
+send_refs(Refs, Chunks) ->
+    {Chunk, Rest} = split_chunk(Refs, ?STREAM_CHUNK, []),
+    erlide_jrpc:event(find_refs, {self(), refs, Chunk}),
+    send_refs(Rest, Chunks + 1).
+
+split_chunk([], _, Acc) ->
+    {lists:reverse(Acc), []};
+split_chunk([{M, _, _, _, _, _, _, _} = R | Rest], N,
+            [{M, _, _, _, _, _, _, _} | _] = Acc) ->
+    split_chunk(Rest, N - 1, [R | Acc]);
+split_chunk(Refs, N, Acc) when N =< 0 ->
+    {lists:reverse(Acc), Refs};
+split_chunk([R | Rest], N, Acc) ->
+    split_chunk(Rest, N - 1, [R | Acc]).
+
+workers() ->
+    erlang:system_info(schedulers_online).
+
+%% Apply F to each of the lists in a worker of its own; the results are in
+%% the same order. A worker dies with the caller (when a search is
+%% canceled); a worker that fails makes the caller fail too.
+pmap(F, Lists) ->
+    Parent = self(),
+    Workers = [spawn_monitor(fun() ->
+                                     link(Parent),
+                                     R = try
+                                             {ok, F(L)}
+                                         catch
+                                             Class:Error ->
+                                                 {error, {Class, Error}}
+                                         end,
+                                     unlink(Parent),
+                                     exit({result, R})
+                             end) || L <- Lists],
+    [receive
+         {'DOWN', MRef, process, Pid, Reason} ->
+             worker_result(Reason)
+     end || {Pid, MRef} <- Workers].
+
+worker_result({result, {ok, R}}) ->
+    R;
+worker_result({result, {error, Error}}) ->
+    erlang:error(Error);
+worker_result(Reason) ->
+    erlang:error(Reason).
+
+%% split L into at most N lists of about the same length
+slices([], _) ->
+    [];
+slices(L, N) ->
+    Size = (length(L) + N - 1) div N,
+    slices(L, Size, []).
+
+slices(L, Size, Acc) when length(L) =< Size ->
+    lists:reverse([L | Acc]);
+slices(L, Size, Acc) ->
+    {Slice, Rest} = lists:split(Size, L),
+    slices(Rest, Size, [Slice | Acc]).
+
+split(N, L) when length(L) =< N ->
+    {L, []};
+split(N, L) ->
+    lists:split(N, L).
+
 read_module_refs(ScannerName, ModulePath, StateDir) ->
     R = erlide_noparse:read_module_refs(ScannerName, ModulePath, StateDir),
     R.
 
-do_add_module_refs(ScannerName, Refs, #state{modules=Modules0} = State) ->
+index_module(ScannerName, Refs, #state{modules=Modules, refs=Index} = State) ->
     ?D(ScannerName),
-    Modules1 = lists:keydelete(ScannerName, #module.scanner_name, Modules0),
-    Modules2 = [#module{scanner_name=ScannerName, refs=Refs} | Modules1],
-    ?D(Modules1),
-    ?D(Modules2),
-    State#state{modules=Modules2}.
+    unindex_module(ScannerName, State),
+    Keyed = lists:keysort(1, [{index_key(D), R} || #ref{data=D} = R <- Refs]),
+    Grouped = group(Keyed),
+    ets:insert(Index, [{{Key, ScannerName}, Rs} || {Key, Rs} <- Grouped]),
+    ets:insert(Modules, {ScannerName, [Key || {Key, _} <- Grouped]}),
+    ok.
+
+unindex_module(ScannerName, #state{modules=Modules, refs=Index}) ->
+    case ets:lookup(Modules, ScannerName) of
+        [{_, Keys}] ->
+            lists:foreach(fun(Key) ->
+                                  ets:delete(Index, {Key, ScannerName})
+                          end, Keys),
+            ets:delete(Modules, ScannerName);
+        [] ->
+            ok
+    end.
+
+%% [{K, V}] sorted on K -> [{K, [V]}], keeping the order of the values
+group([]) ->
+    [];
+group([{K, V} | Rest]) ->
+    group(Rest, K, [V], []).
+
+group([{K, V} | Rest], K, Vs, Acc) ->
+    group(Rest, K, [V | Vs], Acc);
+group([{K, V} | Rest], K0, Vs, Acc) ->
+    group(Rest, K, [V], [{K0, lists:reverse(Vs)} | Acc]);
+group([], K, Vs, Acc) ->
+    lists:reverse([{K, lists:reverse(Vs)} | Acc]).
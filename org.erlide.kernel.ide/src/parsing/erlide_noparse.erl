@@ -9,7 +9,7 @@
 %%
 
 %% called from Java
--export([initial_parse/5, reparse/1, remove_cache_files/2]).
+-export([initial_parse/5, cached_parse/3, reparse/1, remove_cache_files/2]).
 
 %% called from Erlang
 -export([read_module_refs/3]).
@@ -62,6 +62,24 @@ initial_parse(ScannerName, ModuleFileName, StateDir, UpdateCaches,
             {error, Reason}
     end.
 
+%% Only look in the cache, don't parse: returns no_cache if there is no
+%% up to date cache, so that it can be called without a scanner.
+cached_parse(ScannerName, ModuleFileName, StateDir) ->
+    try
+        BaseName = filename:join(StateDir, atom_to_list(ScannerName)),
+        CacheFileName = BaseName ++ ".noparse",
+        case erlide_util:check_cached(ModuleFileName, CacheFileName,
+                                      ?CACHE_VERSION) of
+            {cache, Res} ->
+                {ok, Res, true};
+            {no_cache, _} ->
+                no_cache
+        end
+    catch
+        error:Reason ->
+            {error, Reason}
+    end.
+
 reparse(ScannerName) ->
     try
         Res = do_parse(ScannerName, "", "", true),
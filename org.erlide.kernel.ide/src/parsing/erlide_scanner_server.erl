@@ -169,6 +169,9 @@ loop(Module) ->
     receive
 	{stop, From, []} ->
 	    reply(stop, From, stopped);
+	{changes, Seq, Changes} when is_integer(Seq), is_list(Changes) ->
+	    NewModule = changes(Seq, Changes, Module),
+	    ?MODULE:loop(NewModule);
 	{Cmd, From, Args} ->
 	    NewModule = cmd(Cmd, From, Args, Module),
 	    ?MODULE:loop(NewModule)
@@ -202,12 +205,55 @@ cmd(Cmd, From, Args, Module) ->
 reply(Cmd, From, R) ->
     From ! {Cmd, self(), R}.
 
+%% The text changes are sent by the IDE as plain messages, a batch per
+%% reconcile, without waiting for an answer. The batches are numbered from 1
+%% after each initial scan; one older than the last applied is dropped, a gap
+%% means that the text is out of sync and is logged. The changes are logged
+%% and applied one by one, like the replace_text command; one that fails is
+%% logged and skipped.
+changes(Seq, Changes, Module) ->
+    Last = case get(seq) of
+               undefined -> 0;
+               S -> S
+           end,
+    if
+        Seq =< Last ->
+            ?D({old_changes, Seq, Last}),
+            Module;
+        true ->
+            case Seq =:= Last + 1 of
+                true -> ok;
+                false -> erlide_log:log({scanner_changes_lost,
+                                         Module#module.name, Last, Seq})
+            end,
+            put(seq, Seq),
+            lists:foldl(fun(Change, M) -> change(Seq, Change, M) end,
+                        Module, Changes)
+    end.
+
+change(Seq, {Offset, RemoveLength, NewText}=Change, Module) ->
+    case get(logging) of
+        on ->
+            put(log, get(log)++[{replace_text, Change}]);
+        _ ->
+            ok
+    end,
+    try
+        erlide_scanner:replace_text(Module, Offset, RemoveLength, NewText)
+    catch
+        _:Error ->
+            erlide_log:log({scanner_changes_failed,
+                            Module#module.name, Seq, Change, Error}),
+            Module
+    end.
+
 %% do_cmd(scan_uncached, {Mod, ModuleFileName}, _) ->
 %%     NewMod = erlide_scanner:do_scan_uncached(Mod, ModuleFileName),
 %%     NewMod;
 do_cmd(initial_scan, {Mod, ModuleFileName, InitialText, StateDir, UpdateCache}, _Module) ->
     ?D({initial_scan, Mod, length(InitialText)}),
     {Cached, NewMod} = erlide_scanner:initial_scan(Mod, ModuleFileName, InitialText, StateDir, UpdateCache),
+    put(seq, 0),
     {{ok, Cached}, NewMod};
 do_cmd(dump_module, [], Module) ->
     {Module, Module};
@@ -0,0 +1,23 @@
+-module(erlide_batch_tests).
+
+-include_lib("eunit/include/eunit.hrl").
+
+multi_call_test_() ->
+	[?_assertEqual({}, erlide_batch:multi_call([])),
+	 ?_assertEqual({3, [c,b,a]},
+		       erlide_batch:multi_call([{erlang, length, [[a,b,c]]},
+						{lists, reverse, [[a,b,c]]}])),
+	 ?_assertEqual({1, 2, 3},
+		       erlide_batch:multi_call([{erlang, abs, [-1]},
+						{erlang, abs, [-2]},
+						{erlang, abs, [-3]}]))
+	 ].
+
+multi_call_error_test_() ->
+	[?_assertMatch({ok, {badrpc, {'EXIT', _}}, ok},
+		       erlide_batch:multi_call([{erlang, list_to_atom, ["ok"]},
+						{erlang, length, [not_a_list]},
+						{erlang, list_to_atom, ["ok"]}])),
+	 ?_assertMatch({{badrpc, {'EXIT', _}}},
+		       erlide_batch:multi_call([bad_call]))
+	 ].
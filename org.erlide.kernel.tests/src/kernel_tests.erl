@@ -5,6 +5,7 @@
 all_test_() ->
 	[
 	 erlide_util_tests,
+	 erlide_batch_tests,
 	 erlide_scanner_tests,
          erlide_parsing_tests,
          erlide_indent_tests
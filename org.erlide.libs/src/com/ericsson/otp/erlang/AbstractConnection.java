@@ -19,10 +19,13 @@
 
 package com.ericsson.otp.erlang;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Maintains a connection between a Java process and a remote Erlang, Java or C
@@ -56,6 +59,14 @@ import java.util.Random;
  * OtpConnection.trace can be used to turn on tracing by default for all
  * connections.
  * </p>
+ * 
+ * <p>
+ * Outgoing messages are written through a buffer, so that a message reaches
+ * the socket in a single write. When several threads are sending at the same
+ * time, only the last one flushes the buffer. The System properties
+ * OtpConnection.sendBufferSize and OtpConnection.coalesce (true by default)
+ * can be used to tune this behaviour.
+ * </p>
  */
 public abstract class AbstractConnection extends Thread {
     protected static final int headerLen = 2048; // more than enough
@@ -107,6 +118,17 @@ public abstract class AbstractConnection extends Thread {
 
     private int flags = 0;
 
+    // buffered socket output, created on first use
+    private OutputStream out = null;
+    // threads that are waiting to send on this connection
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
+    protected static int sendBufferSize = 65536;
+    protected static boolean coalesceWrites = true;
+
+    // incoming packets up to this size are read into a buffer that is reused
+    protected static int receiveBufferSize = 65536;
+
     static {
         // trace this connection?
         final String trace = System.getProperties().getProperty(
@@ -119,6 +141,28 @@ public abstract class AbstractConnection extends Thread {
             defaultLevel = 0;
         }
         random = new Random();
+
+        final String bufSize = System.getProperties().getProperty(
+                "OtpConnection.sendBufferSize");
+        try {
+            if (bufSize != null) {
+                sendBufferSize = Integer.valueOf(bufSize).intValue();
+            }
+        } catch (final NumberFormatException e) {
+        }
+        final String rbufSize = System.getProperties().getProperty(
+                "OtpConnection.receiveBufferSize");
+        try {
+            if (rbufSize != null) {
+                receiveBufferSize = Integer.valueOf(rbufSize).intValue();
+            }
+        } catch (final NumberFormatException e) {
+        }
+        final String coalesce = System.getProperties().getProperty(
+                "OtpConnection.coalesce");
+        if (coalesce != null) {
+            coalesceWrites = Boolean.valueOf(coalesce).booleanValue();
+        }
     }
 
     // private AbstractConnection() {
@@ -235,7 +279,7 @@ public abstract class AbstractConnection extends Thread {
         if (!connected) {
             throw new IOException("Not connected");
         }
-        final OtpOutputStream header = new OtpOutputStream(headerLen);
+        final OtpOutputStream header = OtpOutputStream.acquire();
 
         // preamble: 4 byte length + "passthrough" tag + version
         header.write4BE(0); // reserve space for length
@@ -259,7 +303,11 @@ public abstract class AbstractConnection extends Thread {
         // fix up length in preamble
         header.poke4BE(0, header.size() + payload.size() - 4);
 
-        do_send(header, payload);
+        try {
+            do_send(header, payload);
+        } finally {
+            OtpOutputStream.release(header);
+        }
     }
 
     /**
@@ -279,7 +327,7 @@ public abstract class AbstractConnection extends Thread {
         if (!connected) {
             throw new IOException("Not connected");
         }
-        final OtpOutputStream header = new OtpOutputStream(headerLen);
+        final OtpOutputStream header = OtpOutputStream.acquire();
 
         // preamble: 4 byte length + "passthrough" tag + version
         header.write4BE(0); // reserve space for length
@@ -302,7 +350,11 @@ public abstract class AbstractConnection extends Thread {
         // fix up length in preamble
         header.poke4BE(0, header.size() + payload.size() - 4);
 
-        do_send(header, payload);
+        try {
+            do_send(header, payload);
+        } finally {
+            OtpOutputStream.release(header);
+        }
     }
 
     /*
@@ -498,6 +550,11 @@ public abstract class AbstractConnection extends Thread {
         }
 
         final byte[] lbuf = new byte[4];
+        // shared by all packets that fit; the payload of a message is copied
+        // out of it before delivery
+        final byte[] rbuf = new byte[receiveBufferSize];
+        final OtpInputStream rstream = new OtpInputStream(rbuf, flags);
+        boolean shared;
         OtpInputStream ibuf;
         OtpErlangObject traceobj;
         int len;
@@ -512,23 +569,32 @@ public abstract class AbstractConnection extends Thread {
                     // read 4 bytes - get length of incoming packet
                     // socket.getInputStream().read(lbuf);
                     readSock(socket, lbuf);
-                    ibuf = new OtpInputStream(lbuf, flags);
-                    len = ibuf.read4BE();
+                    len = (lbuf[0] << 24 & 0xff000000)
+                            + (lbuf[1] << 16 & 0xff0000)
+                            + (lbuf[2] << 8 & 0xff00) + (lbuf[3] & 0xff);
 
                     // received tick? send tock!
                     if (len == 0) {
                         synchronized (this) {
-                            socket.getOutputStream().write(tock);
+                            final OutputStream os = getOutputStream();
+                            os.write(tock);
+                            os.flush();
                         }
                     }
 
                 } while (len == 0); // tick_loop
 
                 // got a real message (maybe) - read len bytes
-                final byte[] tmpbuf = new byte[len];
-                // i = socket.getInputStream().read(tmpbuf);
-                readSock(socket, tmpbuf);
-                ibuf = new OtpInputStream(tmpbuf, flags);
+                shared = len <= rbuf.length;
+                if (shared) {
+                    readSock(socket, rbuf, len);
+                    rstream.reset(rbuf, 0, len);
+                    ibuf = rstream;
+                } else {
+                    final byte[] tmpbuf = new byte[len];
+                    readSock(socket, tmpbuf, len);
+                    ibuf = new OtpInputStream(tmpbuf, flags);
+                }
 
                 if (ibuf.read1() != passThrough) {
                     break receive_loop;
@@ -598,7 +664,8 @@ public abstract class AbstractConnection extends Thread {
 
                     to = (OtpErlangPid) head.elementAt(2);
 
-                    deliver(new OtpMsg(to, ibuf));
+                    deliver(new OtpMsg(to, shared ? detachPayload(ibuf)
+                            : ibuf));
                     break;
 
                 case regSendTag: // { REG_SEND, FromPid, Cookie, ToName }
@@ -642,7 +709,8 @@ public abstract class AbstractConnection extends Thread {
                     from = (OtpErlangPid) head.elementAt(1);
                     toName = (OtpErlangAtom) head.elementAt(3);
 
-                    deliver(new OtpMsg(from, toName.atomValue(), ibuf));
+                    deliver(new OtpMsg(from, toName.atomValue(),
+                            shared ? detachPayload(ibuf) : ibuf));
                     break;
 
                 case exitTag: // { EXIT, FromPid, ToPid, Reason }
@@ -729,6 +797,17 @@ public abstract class AbstractConnection extends Thread {
         }
     }
 
+    /*
+     * Copy the rest of a packet out of the shared receive buffer, so that it
+     * can be decoded later by the receiver.
+     */
+    private OtpInputStream detachPayload(final OtpInputStream ibuf)
+            throws OtpErlangDecodeException {
+        final byte[] payload = new byte[ibuf.available()];
+        ibuf.readN(payload);
+        return new OtpInputStream(payload, flags);
+    }
+
     /**
      * <p>
      * Set the trace level for this connection. Normally tracing is off by
@@ -789,6 +868,7 @@ public abstract class AbstractConnection extends Thread {
             } catch (final IOException e) { /* ignore socket close errors */
             } finally {
                 socket = null;
+                out = null;
             }
         }
     }
@@ -809,8 +889,40 @@ public abstract class AbstractConnection extends Thread {
         return connected;
     }
 
+    // must be called while holding the lock on this connection
+    private OutputStream getOutputStream() throws IOException {
+        if (out == null) {
+            if (socket == null) {
+                throw new IOException("Not connected");
+            }
+            out = new BufferedOutputStream(socket.getOutputStream(),
+                    sendBufferSize);
+        }
+        return out;
+    }
+
+    /*
+     * Flush the buffered output, unless another thread is waiting to send; in
+     * that case it will flush both messages after it has written its own. Must
+     * be called while holding the lock on this connection.
+     */
+    private void flushOutput(final OutputStream os) throws IOException {
+        if (!coalesceWrites || pendingWrites.get() == 0) {
+            os.flush();
+        }
+    }
+
     // used by send and send_reg (message types with payload)
-    protected synchronized void do_send(final OtpOutputStream header,
+    protected void do_send(final OtpOutputStream header,
+            final OtpOutputStream payload) throws IOException {
+        pendingWrites.incrementAndGet();
+        synchronized (this) {
+            pendingWrites.decrementAndGet();
+            do_send_locked(header, payload);
+        }
+    }
+
+    private void do_send_locked(final OtpOutputStream header,
             final OtpOutputStream payload) throws IOException {
         try {
             if (traceLevel >= sendThreshold) {
@@ -831,8 +943,10 @@ public abstract class AbstractConnection extends Thread {
                 }
             }
 
-            header.writeTo(socket.getOutputStream());
-            payload.writeTo(socket.getOutputStream());
+            final OutputStream os = getOutputStream();
+            header.writeTo(os);
+            payload.writeTo(os);
+            flushOutput(os);
         } catch (final IOException e) {
             close();
             throw e;
@@ -840,7 +954,15 @@ public abstract class AbstractConnection extends Thread {
     }
 
     // used by the other message types
-    protected synchronized void do_send(final OtpOutputStream header)
+    protected void do_send(final OtpOutputStream header) throws IOException {
+        pendingWrites.incrementAndGet();
+        synchronized (this) {
+            pendingWrites.decrementAndGet();
+            do_send_locked(header);
+        }
+    }
+
+    private void do_send_locked(final OtpOutputStream header)
             throws IOException {
         try {
             if (traceLevel >= ctrlThreshold) {
@@ -853,7 +975,9 @@ public abstract class AbstractConnection extends Thread {
                             + e);
                 }
             }
-            header.writeTo(socket.getOutputStream());
+            final OutputStream os = getOutputStream();
+            header.writeTo(os);
+            flushOutput(os);
         } catch (final IOException e) {
             close();
             throw e;
@@ -911,8 +1035,13 @@ public abstract class AbstractConnection extends Thread {
 
     /* this method now throws exception if we don't get full read */
     protected int readSock(final Socket s, final byte[] b) throws IOException {
+        return readSock(s, b, b.length);
+    }
+
+    /* read exactly len bytes into the beginning of b */
+    protected int readSock(final Socket s, final byte[] b, final int len)
+            throws IOException {
         int got = 0;
-        final int len = b.length;
         int i;
         InputStream is = null;
 
@@ -18,9 +18,22 @@
  */
 package com.ericsson.otp.erlang;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * This class implements a generic FIFO queue. There is no upper bound on the
  * length of the queue, items are linked.
+ * 
+ * <p>
+ * Adding items is lock-free, so that any number of threads can deliver to
+ * the queue without contending with each other or with the reader. The queue
+ * is meant to have a single reader; if several threads read from it, they
+ * take turns. A reader waiting for an item is parked and woken up directly by
+ * the thread that adds the next item.
+ * </p>
  */
 
 public class GenericQueue {
@@ -28,26 +41,31 @@ public class GenericQueue {
     private static final int closing = 1;
     private static final int closed = 2;
 
-    private int status;
-    private Bucket head;
-    private Bucket tail;
-    private int count;
+    private volatile int status;
 
-    private void init() {
-        head = null;
-        tail = null;
-        count = 0;
-    }
+    // head is a stub node, owned by the reader; tail is shared with writers
+    private Node head;
+    private final AtomicReference<Node> tail;
+    private final AtomicInteger count;
+
+    // serializes readers, writers never take it
+    private final Object readLock = new Object();
+    private volatile Thread waiter;
 
     /** Create an empty queue */
     public GenericQueue() {
-        init();
+        head = new Node(null);
+        tail = new AtomicReference<Node>(head);
+        count = new AtomicInteger();
         status = open;
     }
 
     /** Clear a queue */
     public void flush() {
-        init();
+        synchronized (readLock) {
+            while (poll() != null) {
+            }
+        }
     }
 
     public void close() {
@@ -60,20 +78,17 @@ public class GenericQueue {
      * @param o
      *            Object to insert in the queue
      */
-    public synchronized void put(final Object o) {
-        final Bucket b = new Bucket(o);
-
-        if (tail != null) {
-            tail.setNext(b);
-            tail = b;
-        } else {
-            // queue was empty but has one element now
-            head = tail = b;
+    public void put(final Object o) {
+        final Node n = new Node(o);
+        count.incrementAndGet();
+        final Node prev = tail.getAndSet(n);
+        prev.next = n;
+
+        // wake up the reader, if it is waiting
+        final Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
         }
-        count++;
-
-        // notify any waiting tasks
-        notify();
     }
 
     /**
@@ -82,16 +97,29 @@ public class GenericQueue {
      * 
      * @return The object at the head of the queue.
      */
-    public synchronized Object get() {
-        Object o = null;
-
-        while ((o = tryGet()) == null) {
-            try {
-                this.wait();
-            } catch (final InterruptedException e) {
+    public Object get() {
+        synchronized (readLock) {
+            boolean interrupted = false;
+            Object o;
+            while ((o = poll()) == null) {
+                waiter = Thread.currentThread();
+                // check again, a writer may have missed us
+                o = poll();
+                if (o != null) {
+                    waiter = null;
+                    break;
+                }
+                LockSupport.park();
+                waiter = null;
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
+            return o;
         }
-        return o;
     }
 
     /**
@@ -108,79 +136,79 @@ public class GenericQueue {
      * @return The object at the head of the queue, or null if none arrived in
      *         time.
      */
-    public synchronized Object get(final long timeout)
-            throws InterruptedException {
+    public Object get(final long timeout) throws InterruptedException {
         if (status == closed) {
             return null;
         }
 
-        long currentTime = System.currentTimeMillis();
-        final long stopTime = currentTime + timeout;
-        Object o = null;
-
-        while (true) {
-            if ((o = tryGet()) != null) {
-                return o;
-            }
-
-            currentTime = System.currentTimeMillis();
-            if (stopTime <= currentTime) {
-                throw new InterruptedException("Get operation timed out");
-            }
-
+        final long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (readLock) {
+            boolean interrupted = false;
             try {
-                this.wait(stopTime - currentTime);
-            } catch (final InterruptedException e) {
-                // ignore, but really should retry operation instead
+                Object o;
+                while ((o = poll()) == null) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new InterruptedException(
+                                "Get operation timed out");
+                    }
+                    waiter = Thread.currentThread();
+                    o = poll();
+                    if (o != null) {
+                        waiter = null;
+                        break;
+                    }
+                    LockSupport.parkNanos(remaining);
+                    waiter = null;
+                    if (Thread.interrupted()) {
+                        // ignore, but really should retry operation instead
+                        interrupted = true;
+                    }
+                }
+                return o;
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
             }
         }
     }
 
     // attempt to retrieve message from queue head
     public Object tryGet() {
-        Object o = null;
-
-        if (head != null) {
-            o = head.getContents();
-            head = head.getNext();
-            count--;
-
-            if (head == null) {
-                tail = null;
-                count = 0;
-            }
+        synchronized (readLock) {
+            return poll();
         }
+    }
 
-        return o;
+    public int getCount() {
+        return count.get();
     }
 
-    public synchronized int getCount() {
-        return count;
+    // must be called by the reader, i.e. holding readLock
+    private Object poll() {
+        final Node next = head.next;
+        if (next == null) {
+            return null;
+        }
+        final Object o = next.contents;
+        next.contents = null;
+        head = next;
+        count.decrementAndGet();
+        return o;
     }
 
     /*
-     * The Bucket class. The queue is implemented as a linked list of Buckets.
-     * The container holds the queued object and a reference to the next Bucket.
+     * The queue is implemented as a linked list of Nodes, starting with a stub
+     * that has already been consumed.
      */
-    class Bucket {
-        private Bucket next;
-        private final Object contents;
+    private static final class Node {
+        volatile Node next;
+        Object contents;
 
-        public Bucket(final Object o) {
-            next = null;
+        Node(final Object o) {
             contents = o;
         }
-
-        public void setNext(final Bucket newNext) {
-            next = newNext;
-        }
-
-        public Bucket getNext() {
-            return next;
-        }
-
-        public Object getContents() {
-            return contents;
-        }
     }
 }
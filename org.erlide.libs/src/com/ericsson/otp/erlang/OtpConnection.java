@@ -357,7 +357,12 @@ public class OtpConnection extends AbstractConnection {
     public void send(final OtpErlangPid dest, final OtpErlangObject msg)
             throws IOException {
         // encode and send the message
-        super.sendBuf(self.pid(), dest, new OtpOutputStream(msg));
+        final OtpOutputStream payload = OtpOutputStream.acquire(msg);
+        try {
+            super.sendBuf(self.pid(), dest, payload);
+        } finally {
+            OtpOutputStream.release(payload);
+        }
     }
 
     /**
@@ -375,7 +380,12 @@ public class OtpConnection extends AbstractConnection {
     public void send(final String dest, final OtpErlangObject msg)
             throws IOException {
         // encode and send the message
-        super.sendBuf(self.pid(), dest, new OtpOutputStream(msg));
+        final OtpOutputStream payload = OtpOutputStream.acquire(msg);
+        try {
+            super.sendBuf(self.pid(), dest, payload);
+        } finally {
+            OtpOutputStream.release(payload);
+        }
     }
 
     /**
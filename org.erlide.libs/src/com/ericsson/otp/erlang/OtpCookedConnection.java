@@ -152,7 +152,12 @@ public class OtpCookedConnection extends AbstractConnection {
     void send(final OtpErlangPid from, final OtpErlangPid dest,
             final OtpErlangObject msg) throws IOException {
         // encode and send the message
-        sendBuf(from, dest, new OtpOutputStream(msg));
+        final OtpOutputStream payload = OtpOutputStream.acquire(msg);
+        try {
+            sendBuf(from, dest, payload);
+        } finally {
+            OtpOutputStream.release(payload);
+        }
     }
 
     /*
@@ -162,7 +167,12 @@ public class OtpCookedConnection extends AbstractConnection {
     void send(final OtpErlangPid from, final String dest,
             final OtpErlangObject msg) throws IOException {
         // encode and send the message
-        sendBuf(from, dest, new OtpOutputStream(msg));
+        final OtpOutputStream payload = OtpOutputStream.acquire(msg);
+        try {
+            sendBuf(from, dest, payload);
+        } finally {
+            OtpOutputStream.release(payload);
+        }
     }
 
     @Override
@@ -20,6 +20,7 @@ package com.ericsson.otp.erlang;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 
 /**
@@ -28,6 +29,14 @@ import java.math.BigDecimal;
  * <p>
  * Note that this class is not synchronized, if you need synchronization you
  * must provide it yourself.
+ * 
+ * <p>
+ * Integers, atoms and strings are decoded directly from the underlying buffer,
+ * without copying them to temporary arrays first.
+ * 
+ * <p>
+ * Decoded atoms are kept in a small table shared by all streams, so that the
+ * same {@link OtpErlangAtom} instance is returned for frequently used atoms.
  */
 public class OtpInputStream extends ByteArrayInputStream {
 
@@ -35,6 +44,10 @@ public class OtpInputStream extends ByteArrayInputStream {
 
     private final int flags;
 
+    // recently decoded atoms, indexed by a hash of their name
+    private static final int atomCacheSize = 2048; // must be a power of 2
+    private static final OtpErlangAtom[] atomCache = new OtpErlangAtom[atomCacheSize];
+
     /**
      * @param buf
      */
@@ -64,6 +77,83 @@ public class OtpInputStream extends ByteArrayInputStream {
         this.flags = flags;
     }
 
+    /*
+     * Point this stream to new contents. Used by connections to decode the
+     * headers of incoming packets without allocating a new stream each time.
+     */
+    void reset(final byte[] buf, final int offset, final int length) {
+        super.buf = buf;
+        super.pos = offset;
+        super.count = Math.min(offset + length, buf.length);
+        super.mark = offset;
+    }
+
+    /*
+     * Check that n more bytes can be read from the stream.
+     */
+    private void ensure(final int n) throws OtpErlangDecodeException {
+        if (n < 0 || super.count - super.pos < n) {
+            throw new OtpErlangDecodeException("Cannot read from input stream");
+        }
+    }
+
+    /*
+     * Read len bytes as an ISO-8859-1 string, directly from the buffer.
+     */
+    private String readLatin1(final int len) throws OtpErlangDecodeException {
+        ensure(len);
+        String s;
+        try {
+            s = new String(super.buf, super.pos, len, "ISO-8859-1");
+        } catch (final UnsupportedEncodingException e) {
+            s = new String(super.buf, super.pos, len);
+        }
+        super.pos += len;
+        return s;
+    }
+
+    /*
+     * Read len bytes as the name of an atom. If the same atom was decoded
+     * recently, the cached instance is returned and no string is built.
+     */
+    private OtpErlangAtom readAtomName(final int len)
+            throws OtpErlangDecodeException {
+        ensure(len);
+        if (len > OtpExternal.maxAtomLength) {
+            final String atom = readLatin1(len);
+            return new OtpErlangAtom(atom.substring(0,
+                    OtpExternal.maxAtomLength));
+        }
+        final byte[] b = super.buf;
+        final int p = super.pos;
+        int h = len;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + b[p + i];
+        }
+        final int index = (h ^ h >>> 16) & atomCacheSize - 1;
+        final OtpErlangAtom cached = atomCache[index];
+        if (cached != null && sameName(cached.atomValue(), b, p, len)) {
+            super.pos += len;
+            return cached;
+        }
+        final OtpErlangAtom atom = new OtpErlangAtom(readLatin1(len));
+        atomCache[index] = atom;
+        return atom;
+    }
+
+    private static boolean sameName(final String name, final byte[] b,
+            final int offset, final int len) {
+        if (name.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (name.charAt(i) != (b[offset + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Get the current position in the stream.
      * 
@@ -207,13 +297,11 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public int read2BE() throws OtpErlangDecodeException {
-        final byte[] b = new byte[2];
-        try {
-            super.read(b);
-        } catch (final IOException e) {
-            throw new OtpErlangDecodeException("Cannot read from input stream");
-        }
-        return (b[0] << 8 & 0xff00) + (b[1] & 0xff);
+        ensure(2);
+        final byte[] b = super.buf;
+        final int p = super.pos;
+        super.pos += 2;
+        return (b[p] << 8 & 0xff00) + (b[p + 1] & 0xff);
     }
 
     /**
@@ -225,14 +313,12 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public int read4BE() throws OtpErlangDecodeException {
-        final byte[] b = new byte[4];
-        try {
-            super.read(b);
-        } catch (final IOException e) {
-            throw new OtpErlangDecodeException("Cannot read from input stream");
-        }
-        return (b[0] << 24 & 0xff000000) + (b[1] << 16 & 0xff0000)
-                + (b[2] << 8 & 0xff00) + (b[3] & 0xff);
+        ensure(4);
+        final byte[] b = super.buf;
+        final int p = super.pos;
+        super.pos += 4;
+        return (b[p] << 24 & 0xff000000) + (b[p + 1] << 16 & 0xff0000)
+                + (b[p + 2] << 8 & 0xff00) + (b[p + 3] & 0xff);
     }
 
     /**
@@ -244,13 +330,11 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public int read2LE() throws OtpErlangDecodeException {
-        final byte[] b = new byte[2];
-        try {
-            super.read(b);
-        } catch (final IOException e) {
-            throw new OtpErlangDecodeException("Cannot read from input stream");
-        }
-        return (b[1] << 8 & 0xff00) + (b[0] & 0xff);
+        ensure(2);
+        final byte[] b = super.buf;
+        final int p = super.pos;
+        super.pos += 2;
+        return (b[p + 1] << 8 & 0xff00) + (b[p] & 0xff);
     }
 
     /**
@@ -262,14 +346,12 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public int read4LE() throws OtpErlangDecodeException {
-        final byte[] b = new byte[4];
-        try {
-            super.read(b);
-        } catch (final IOException e) {
-            throw new OtpErlangDecodeException("Cannot read from input stream");
-        }
-        return (b[3] << 24 & 0xff000000) + (b[2] << 16 & 0xff0000)
-                + (b[1] << 8 & 0xff00) + (b[0] & 0xff);
+        ensure(4);
+        final byte[] b = super.buf;
+        final int p = super.pos;
+        super.pos += 4;
+        return (b[p + 3] << 24 & 0xff000000) + (b[p + 2] << 16 & 0xff0000)
+                + (b[p + 1] << 8 & 0xff00) + (b[p] & 0xff);
     }
 
     /**
@@ -284,15 +366,13 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public long readLE(int n) throws OtpErlangDecodeException {
-        final byte[] b = new byte[n];
-        try {
-            super.read(b);
-        } catch (final IOException e) {
-            throw new OtpErlangDecodeException("Cannot read from input stream");
-        }
+        ensure(n);
+        final byte[] b = super.buf;
+        final int p = super.pos;
+        super.pos += n;
         long v = 0;
         while (n-- > 0) {
-            v = v << 8 | (long) b[n] & 0xff;
+            v = v << 8 | (long) b[p + n] & 0xff;
         }
         return v;
     }
@@ -309,15 +389,13 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public long readBE(final int n) throws OtpErlangDecodeException {
-        final byte[] b = new byte[n];
-        try {
-            super.read(b);
-        } catch (final IOException e) {
-            throw new OtpErlangDecodeException("Cannot read from input stream");
-        }
+        ensure(n);
+        final byte[] b = super.buf;
+        final int p = super.pos;
+        super.pos += n;
         long v = 0;
         for (int i = 0; i < n; i++) {
-            v = v << 8 | (long) b[i] & 0xff;
+            v = v << 8 | (long) b[p + i] & 0xff;
         }
         return v;
     }
@@ -344,10 +422,16 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next term in the stream is not an atom.
      */
     public String read_atom() throws OtpErlangDecodeException {
+        return read_atom_term().atomValue();
+    }
+
+    /*
+     * Read an Erlang atom from the stream, possibly reusing an atom that was
+     * decoded earlier.
+     */
+    OtpErlangAtom read_atom_term() throws OtpErlangDecodeException {
         int tag;
         int len;
-        byte[] strbuf;
-        String atom;
 
         tag = read1skip_version();
 
@@ -358,16 +442,7 @@ public class OtpInputStream extends ByteArrayInputStream {
         }
 
         len = read2BE();
-
-        strbuf = new byte[len];
-        this.readN(strbuf);
-        atom = OtpErlangString.newString(strbuf);
-
-        if (atom.length() > OtpExternal.maxAtomLength) {
-            atom = atom.substring(0, OtpExternal.maxAtomLength);
-        }
-
-        return atom;
+        return readAtomName(len);
     }
 
     /**
@@ -392,6 +467,7 @@ public class OtpInputStream extends ByteArrayInputStream {
         }
 
         len = read4BE();
+        ensure(len);
 
         bin = new byte[len];
         this.readN(bin);
@@ -426,6 +502,7 @@ public class OtpInputStream extends ByteArrayInputStream {
         }
 
         len = read4BE();
+        ensure(len + 1);
         bin = new byte[len];
         final int tail_bits = read1();
         if (tail_bits < 0 || 7 < tail_bits) {
@@ -481,6 +558,7 @@ public class OtpInputStream extends ByteArrayInputStream {
             String str;
 
             // get the string
+            ensure(strbuf.length);
             this.readN(strbuf);
             str = OtpErlangString.newString(strbuf);
 
@@ -1057,15 +1135,12 @@ public class OtpInputStream extends ByteArrayInputStream {
     public String read_string() throws OtpErlangDecodeException {
         int tag;
         int len;
-        byte[] strbuf;
         int[] intbuf;
         tag = read1skip_version();
         switch (tag) {
         case OtpExternal.stringTag:
             len = read2BE();
-            strbuf = new byte[len];
-            this.readN(strbuf);
-            return OtpErlangString.newString(strbuf);
+            return readLatin1(len);
         case OtpExternal.nilTag:
             return "";
         case OtpExternal.listTag: // List when unicode +
@@ -1143,7 +1218,7 @@ public class OtpInputStream extends ByteArrayInputStream {
             return new OtpErlangLong(this);
 
         case OtpExternal.atomTag:
-            return new OtpErlangAtom(this);
+            return read_atom_term();
 
         case OtpExternal.floatTag:
         case OtpExternal.newFloatTag:
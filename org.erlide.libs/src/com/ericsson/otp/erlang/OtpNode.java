@@ -19,13 +19,17 @@
 package com.ericsson.otp.erlang;
 
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Collection;
-import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>
@@ -309,6 +313,25 @@ public class OtpNode extends OtpLocalNode {
         return null;
     }
 
+    /**
+     * Get the number of mailboxes that currently exist on this node.
+     * 
+     * @return the number of live mailboxes.
+     */
+    public int getMboxCount() {
+        return mboxes.liveCount();
+    }
+
+    /**
+     * Get the number of mailboxes that have been created on this node since
+     * it was started.
+     * 
+     * @return the total number of mailboxes created.
+     */
+    public long getCreatedMboxCount() {
+        return mboxes.createdCount();
+    }
+
     /**
      * Register interest in certain system events. The {@link OtpNodeStatus
      * OtpNodeStatus} handler object contains callback methods, that will be
@@ -555,41 +578,52 @@ public class OtpNode extends OtpLocalNode {
     }
 
     /*
-     * this class used to wrap the mailbox hashtables so we can use weak
-     * references
+     * this class used to wrap the mailbox tables so we can use weak references.
+     * Lookups don't take any locks; references to mailboxes that have been
+     * garbage collected are purged through a reference queue.
      */
     public class Mailboxes {
         // mbox pids here
-        private Hashtable<OtpErlangPid, WeakReference<OtpMbox>> byPid = null;
+        private final ConcurrentMap<OtpErlangPid, MboxRef<OtpErlangPid>> byPid;
         // mbox names here
-        private Hashtable<String, WeakReference<OtpMbox>> byName = null;
+        private final ConcurrentMap<String, MboxRef<String>> byName;
+        // collected mailboxes show up here
+        private final ReferenceQueue<OtpMbox> collected;
+        // number of mailboxes created since start
+        private final AtomicLong created;
 
         public Mailboxes() {
-            byPid = new Hashtable<OtpErlangPid, WeakReference<OtpMbox>>(17,
-                    (float) 0.95);
-            byName = new Hashtable<String, WeakReference<OtpMbox>>(17,
+            byPid = new ConcurrentHashMap<OtpErlangPid, MboxRef<OtpErlangPid>>(
+                    17, (float) 0.95);
+            byName = new ConcurrentHashMap<String, MboxRef<String>>(17,
                     (float) 0.95);
+            collected = new ReferenceQueue<OtpMbox>();
+            created = new AtomicLong();
         }
 
         public OtpMbox create(final String name) {
             OtpMbox m = null;
 
+            expunge();
             synchronized (byName) {
                 if (get(name) != null) {
                     return null;
                 }
                 final OtpErlangPid pid = createPid();
                 m = new OtpMbox(OtpNode.this, pid, name);
-                byPid.put(pid, new WeakReference<OtpMbox>(m));
-                byName.put(name, new WeakReference<OtpMbox>(m));
+                byPid.put(pid, new MboxRef<OtpErlangPid>(pid, m, byPid));
+                byName.put(name, new MboxRef<String>(name, m, byName));
             }
+            created.incrementAndGet();
             return m;
         }
 
         public OtpMbox create() {
+            expunge();
             final OtpErlangPid pid = createPid();
             final OtpMbox m = new OtpMbox(OtpNode.this, pid);
-            byPid.put(pid, new WeakReference<OtpMbox>(m));
+            byPid.put(pid, new MboxRef<OtpErlangPid>(pid, m, byPid));
+            created.incrementAndGet();
             return m;
         }
 
@@ -599,19 +633,7 @@ public class OtpNode extends OtpLocalNode {
         }
 
         public String[] names() {
-            String allnames[] = null;
-
-            synchronized (byName) {
-                final int n = byName.size();
-                final Enumeration<String> keys = byName.keys();
-                allnames = new String[n];
-
-                int i = 0;
-                while (keys.hasMoreElements()) {
-                    allnames[i++] = keys.nextElement();
-                }
-            }
-            return allnames;
+            return byName.keySet().toArray(new String[0]);
         }
 
         public boolean register(final String name, final OtpMbox mbox) {
@@ -625,7 +647,7 @@ public class OtpNode extends OtpLocalNode {
                     if (get(name) != null) {
                         return false;
                     }
-                    byName.put(name, new WeakReference<OtpMbox>(mbox));
+                    byName.put(name, new MboxRef<String>(name, mbox, byName));
                     mbox.name = name;
                 }
             }
@@ -634,11 +656,11 @@ public class OtpNode extends OtpLocalNode {
 
         /*
          * look up a mailbox based on its name. If the mailbox has gone out of
-         * scope we also remove the reference from the hashtable so we don't
-         * find it again.
+         * scope we also remove the reference from the table so we don't find
+         * it again.
          */
         public OtpMbox get(final String name) {
-            final WeakReference<OtpMbox> wr = byName.get(name);
+            final MboxRef<String> wr = byName.get(name);
 
             if (wr != null) {
                 final OtpMbox m = wr.get();
@@ -646,18 +668,18 @@ public class OtpNode extends OtpLocalNode {
                 if (m != null) {
                     return m;
                 }
-                byName.remove(name);
+                byName.remove(name, wr);
             }
             return null;
         }
 
         /*
          * look up a mailbox based on its pid. If the mailbox has gone out of
-         * scope we also remove the reference from the hashtable so we don't
-         * find it again.
+         * scope we also remove the reference from the table so we don't find
+         * it again.
          */
         public OtpMbox get(final OtpErlangPid pid) {
-            final WeakReference<OtpMbox> wr = byPid.get(pid);
+            final MboxRef<OtpErlangPid> wr = byPid.get(pid);
 
             if (wr != null) {
                 final OtpMbox m = wr.get();
@@ -665,15 +687,63 @@ public class OtpNode extends OtpLocalNode {
                 if (m != null) {
                     return m;
                 }
-                byPid.remove(pid);
+                byPid.remove(pid, wr);
             }
             return null;
         }
 
         public void remove(final OtpMbox mbox) {
             byPid.remove(mbox.self);
-            if (mbox.name != null) {
-                byName.remove(mbox.name);
+            final String name = mbox.name;
+            if (name != null) {
+                final MboxRef<String> wr = byName.get(name);
+                if (wr != null && wr.get() == mbox) {
+                    byName.remove(name, wr);
+                }
+            }
+            expunge();
+        }
+
+        /**
+         * @return the number of mailboxes that are currently registered.
+         */
+        public int liveCount() {
+            expunge();
+            return byPid.size();
+        }
+
+        /**
+         * @return the number of mailboxes created since the node was started.
+         */
+        public long createdCount() {
+            return created.get();
+        }
+
+        // remove the entries of mailboxes that have been garbage collected
+        private void expunge() {
+            Reference<? extends OtpMbox> ref;
+            while ((ref = collected.poll()) != null) {
+                ((MboxRef<?>) ref).unregister();
+            }
+        }
+
+        /*
+         * a weak reference to a mailbox that knows where it is registered, so
+         * that it can be removed once the mailbox is collected
+         */
+        private final class MboxRef<K> extends WeakReference<OtpMbox> {
+            private final K key;
+            private final ConcurrentMap<K, MboxRef<K>> table;
+
+            MboxRef(final K key, final OtpMbox mbox,
+                    final ConcurrentMap<K, MboxRef<K>> table) {
+                super(mbox, collected);
+                this.key = key;
+                this.table = table;
+            }
+
+            void unregister() {
+                table.remove(key, this);
             }
         }
     }
@@ -34,6 +34,11 @@ import java.text.DecimalFormat;
  * Note that this class is not synchronized, if you need synchronization you
  * must provide it yourself.
  * 
+ * <p>
+ * The buffer grows geometrically, so that encoding large terms takes linear
+ * time. When a stream is created from a term, its size is estimated first so
+ * that most terms are encoded without growing the buffer at all.
+ * 
  */
 public class OtpOutputStream extends ByteArrayOutputStream {
     /** The default initial size of the stream. * */
@@ -42,6 +47,16 @@ public class OtpOutputStream extends ByteArrayOutputStream {
     /** The default increment used when growing the stream. * */
     public static final int defaultIncrement = 2048;
 
+    // streams reused by each thread for encoding outgoing messages
+    private static final int poolSize = 2;
+    private static final int maxPooledSize = 256 * 1024;
+    private static final ThreadLocal<OtpOutputStream[]> pool = new ThreadLocal<OtpOutputStream[]>() {
+        @Override
+        protected OtpOutputStream[] initialValue() {
+            return new OtpOutputStream[poolSize];
+        }
+    };
+
     // static formats, used to encode floats and doubles
     @SuppressWarnings("unused")
     private static final DecimalFormat eform = new DecimalFormat("e+00;e-00");
@@ -68,10 +83,147 @@ public class OtpOutputStream extends ByteArrayOutputStream {
      * Create a stream containing the encoded version of the given Erlang term.
      */
     public OtpOutputStream(final OtpErlangObject o) {
-        this();
+        this(Math.max(defaultInitialSize, encodedSize(o)));
         write_any(o);
     }
 
+    /*
+     * Get an empty stream, reusing one that was released earlier by the same
+     * thread if possible. Used by connections for encoding outgoing messages.
+     */
+    static OtpOutputStream acquire() {
+        final OtpOutputStream[] streams = pool.get();
+        for (int i = 0; i < streams.length; i++) {
+            final OtpOutputStream s = streams[i];
+            if (s != null) {
+                streams[i] = null;
+                s.count = 0;
+                return s;
+            }
+        }
+        return new OtpOutputStream();
+    }
+
+    /*
+     * Get a stream containing the encoded version of the given term, reusing
+     * a released stream if possible.
+     */
+    static OtpOutputStream acquire(final OtpErlangObject o) {
+        final OtpOutputStream s = acquire();
+        s.ensureCapacity(encodedSize(o));
+        s.write_any(o);
+        return s;
+    }
+
+    /*
+     * Give back a stream obtained from acquire(); it must not be used
+     * afterwards. Very large buffers are not kept.
+     */
+    static void release(final OtpOutputStream s) {
+        if (s.buf.length > maxPooledSize) {
+            return;
+        }
+        final OtpOutputStream[] streams = pool.get();
+        for (int i = 0; i < streams.length; i++) {
+            if (streams[i] == null) {
+                streams[i] = s;
+                return;
+            }
+        }
+    }
+
+    /*
+     * Make sure there is room for n more bytes, growing the buffer to at least
+     * twice its size if needed.
+     */
+    private void ensureCapacity(final int n) {
+        final int needed = super.count + n;
+        if (needed > super.buf.length) {
+            final int size = Math.max(needed, super.buf.length << 1);
+            final byte[] tmp = new byte[size];
+            System.arraycopy(super.buf, 0, tmp, 0, super.count);
+            super.buf = tmp;
+        }
+    }
+
+    /**
+     * Compute the (approximate) number of bytes needed to encode a term. The
+     * result is exact for the common types and a small guess for the others;
+     * it is only used to size the buffer.
+     * 
+     * @param o
+     *            the Erlang term.
+     * 
+     * @return the estimated size of the encoded term, in bytes.
+     */
+    public static int encodedSize(final OtpErlangObject o) {
+        if (o instanceof OtpErlangAtom) {
+            return 3 + ((OtpErlangAtom) o).atomValue().length();
+        } else if (o instanceof OtpErlangLong) {
+            final OtpErlangLong l = (OtpErlangLong) o;
+            if (l.isLong()) {
+                final long v = l.longValue();
+                if ((v & 0xffL) == v) {
+                    return 2;
+                } else if (v >= OtpExternal.erlMin && v <= OtpExternal.erlMax) {
+                    return 5;
+                }
+            }
+            return 7 + (l.bitLength() >> 3);
+        } else if (o instanceof OtpErlangString) {
+            return stringSize(((OtpErlangString) o).stringValue());
+        } else if (o instanceof OtpErlangList) {
+            final OtpErlangList l = (OtpErlangList) o;
+            final int arity = l.arity();
+            if (arity == 0) {
+                return 1;
+            }
+            int size = 5;
+            for (int i = 0; i < arity; i++) {
+                size += encodedSize(l.elementAt(i));
+            }
+            final OtpErlangObject tail = l.getLastTail();
+            return size + (tail == null ? 1 : encodedSize(tail));
+        } else if (o instanceof OtpErlangTuple) {
+            final OtpErlangTuple t = (OtpErlangTuple) o;
+            final int arity = t.arity();
+            int size = arity < 0xff ? 2 : 5;
+            for (int i = 0; i < arity; i++) {
+                size += encodedSize(t.elementAt(i));
+            }
+            return size;
+        } else if (o instanceof OtpErlangBinary) {
+            return 5 + ((OtpErlangBinary) o).size();
+        } else if (o instanceof OtpErlangBitstr) {
+            return 6 + ((OtpErlangBitstr) o).size();
+        } else if (o instanceof OtpErlangDouble) {
+            return 9;
+        } else if (o instanceof OtpErlangPid) {
+            return 12 + ((OtpErlangPid) o).node().length();
+        } else if (o instanceof OtpErlangRef) {
+            return 18 + ((OtpErlangRef) o).node().length();
+        }
+        return 32;
+    }
+
+    /*
+     * The size of a string as encoded by write_string: either a string, or a
+     * list of small integers with the wide characters as integers.
+     */
+    private static int stringSize(final String s) {
+        final int len = s.length();
+        int wide = 0;
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) > 255) {
+                wide++;
+            }
+        }
+        if (len <= 65535 && wide == 0) {
+            return 3 + len;
+        }
+        return 6 + 2 * len + 3 * wide;
+    }
+
     // package scope
     /*
      * Get the contents of the output stream as an input stream instead. This is
@@ -106,11 +258,7 @@ public class OtpOutputStream extends ByteArrayOutputStream {
      */
     public void write(final byte b) {
         if (super.count >= super.buf.length) {
-            // System.err.println("Expanding buffer from " + this.buf.length
-            // + " to " + (this.buf.length+defaultIncrement));
-            final byte[] tmp = new byte[super.buf.length + defaultIncrement];
-            System.arraycopy(super.buf, 0, tmp, 0, super.count);
-            super.buf = tmp;
+            ensureCapacity(1);
         }
         super.buf[super.count++] = b;
     }
@@ -125,14 +273,7 @@ public class OtpOutputStream extends ByteArrayOutputStream {
 
     @Override
     public void write(final byte[] buf) {
-        if (super.count + buf.length > super.buf.length) {
-            // System.err.println("Expanding buffer from " + super.buf.length
-            // + " to " + (buf.length + super.buf.lengt + defaultIncrement));
-            final byte[] tmp = new byte[super.buf.length + buf.length
-                    + defaultIncrement];
-            System.arraycopy(super.buf, 0, tmp, 0, super.count);
-            super.buf = tmp;
-        }
+        ensureCapacity(buf.length);
         System.arraycopy(buf, 0, super.buf, super.count, buf.length);
         super.count += buf.length;
     }
@@ -325,7 +466,11 @@ public class OtpOutputStream extends ByteArrayOutputStream {
     public void write_atom(final String atom) {
         write1(OtpExternal.atomTag);
         write2BE(atom.length());
-        writeN(atom.getBytes());
+        try {
+            writeN(atom.getBytes("ISO-8859-1"));
+        } catch (final UnsupportedEncodingException e) {
+            writeN(atom.getBytes());
+        }
     }
 
     /**
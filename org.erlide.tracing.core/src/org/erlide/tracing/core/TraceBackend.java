@@ -95,6 +95,11 @@ public class TraceBackend {
         private final TraceDataHandler handler = new TraceDataHandler();
         private boolean firstTrace = true;
 
+        @Override
+        public String[] getTopics() {
+            return new String[] { EVENT_NAME };
+        }
+
         @Override
         protected void doHandleMsg(OtpErlangObject msg) throws Exception {
             OtpErlangObject message = getStandardEvent(msg, EVENT_NAME);
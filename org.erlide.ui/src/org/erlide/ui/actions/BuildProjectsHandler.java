@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Vlad Dumitrescu and others.
+ * All rights reserved. This program and the accompanying materials 
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at 
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Vlad Dumitrescu
+ *******************************************************************************/
+package org.erlide.ui.actions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.commands.AbstractHandler;
+import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.core.commands.IHandler;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.erlide.core.ErlangPlugin;
+import org.erlide.core.builder.BuildScheduler;
+
+/**
+ * Builds all the open Erlang projects, the independent ones in parallel.
+ */
+public class BuildProjectsHandler extends AbstractHandler implements IHandler {
+
+    public Object execute(final ExecutionEvent event) throws ExecutionException {
+        final List<IProject> projects = new ArrayList<IProject>();
+        for (final IProject p : ResourcesPlugin.getWorkspace().getRoot()
+                .getProjects()) {
+            try {
+                if (p.isAccessible() && p.hasNature(ErlangPlugin.NATURE_ID)) {
+                    projects.add(p);
+                }
+            } catch (final CoreException e) {
+                // not open
+            }
+        }
+        new BuildScheduler(projects).schedule();
+        return null;
+    }
+
+}
@@ -52,7 +52,7 @@ import org.erlide.core.erlang.ISourceReference;
 import org.erlide.core.erlang.util.BackendUtils;
 import org.erlide.core.erlang.util.ErlangFunction;
 import org.erlide.core.erlang.util.ErlideUtil;
-import org.erlide.core.erlang.util.ModelUtils;
+import org.erlide.core.erlang.util.ModuleIndex;
 import org.erlide.jinterface.backend.Backend;
 import org.erlide.jinterface.backend.BackendException;
 import org.erlide.jinterface.backend.util.Util;
@@ -336,48 +336,15 @@ public class ErlContentAssistProcessor implements IContentAssistProcessor {
 
     private List<ICompletionProposal> getModules(final Backend b,
             final int offset, final String prefix) {
-        final List<String> allErlangFiles = new ArrayList<String>();
-        if (module != null) {
-            final IErlProject erlProject = module.getProject();
-            try {
-                final List<IErlModule> modules = ErlModelUtils
-                        .getModulesWithReferencedProjects(erlProject);
-                for (final IErlModule m : modules) {
-                    if (m.getModuleKind() == IErlModule.ModuleKind.ERL) {
-                        final String name = ErlideUtil.withoutExtension(m
-                                .getName());
-                        if (!allErlangFiles.contains(name)) {
-                            allErlangFiles.add(name);
-                        }
-                    }
-                }
-            } catch (final CoreException e) {
-            }
-            // add external modules
-            final List<String> mods = ModelUtils.getExternalModules(b, prefix,
-                    erlProject);
-            for (final String m : mods) {
-                final String name = ErlideUtil.basenameWithoutExtension(m);
-                if (!allErlangFiles.contains(name)) {
-                    allErlangFiles.add(name);
-                }
-            }
-        }
         final List<ICompletionProposal> result = new ArrayList<ICompletionProposal>();
-        OtpErlangObject res = null;
-        res = ErlideDoc.getModules(b, prefix, allErlangFiles);
-        if (res instanceof OtpErlangList) {
-            final OtpErlangList resList = (OtpErlangList) res;
-            for (int i = 0; i < resList.arity(); ++i) {
-                final OtpErlangObject o = resList.elementAt(i);
-                if (o instanceof OtpErlangString) {
-                    final OtpErlangString s = (OtpErlangString) o;
-                    final String cpl = s.stringValue() + ":";
-                    final int prefixLength = prefix.length();
-                    result.add(new CompletionProposal(cpl, offset
-                            - prefixLength, prefixLength, cpl.length()));
-                }
-            }
+        final IErlProject erlProject = module != null ? module.getProject()
+                : null;
+        final int prefixLength = prefix.length();
+        for (final String name : ModuleIndex.getDefault().getModuleNames(b,
+                erlProject, prefix)) {
+            final String cpl = name + ":";
+            result.add(new CompletionProposal(cpl, offset - prefixLength,
+                    prefixLength, cpl.length()));
         }
         return result;
     }
@@ -386,10 +353,12 @@ public class ErlContentAssistProcessor implements IContentAssistProcessor {
             final Backend backend, final int offset, final String prefix) {
         final String stateDir = ErlideUIPlugin.getDefault().getStateLocation()
                 .toString();
-        final OtpErlangObject res = ErlideDoc.getProposalsWithDoc(backend,
-                "<auto_imported>", prefix, stateDir);
+        final OtpErlangObject res = ModuleIndex.getDefault().getProposals(
+                backend, "<auto_imported>", prefix, stateDir);
         final List<ICompletionProposal> result = new ArrayList<ICompletionProposal>();
-        addFunctionProposalsWithDoc(offset, prefix, result, res, null, false);
+        // the parameter offsets are for the empty prefix
+        addFunctionProposalsWithDoc(offset, offset - prefix.length(), prefix,
+                result, res, null, false);
         return result;
     }
 
@@ -401,7 +370,8 @@ public class ErlContentAssistProcessor implements IContentAssistProcessor {
         for (final IErlImport imp : module.getImports()) {
             final OtpErlangObject res = ErlideDoc.getProposalsWithDoc(backend,
                     imp.getImportModule(), prefix, stateDir);
-            addFunctionProposalsWithDoc(offset, prefix, result, res, imp, false);
+            addFunctionProposalsWithDoc(offset, offset, prefix, result, res,
+                    imp, false);
         }
         return result;
     }
@@ -486,53 +456,53 @@ public class ErlContentAssistProcessor implements IContentAssistProcessor {
                 .toString();
         // we have an external call
         // first check in project, refs and external modules
-        final List<IErlModule> modules = ErlModelUtils
-                .getModulesWithReferencedProjects(project);
         final IErlModel model = ErlangCore.getModel();
         final IErlProject erlProject = module == null ? null : module
                 .getProject();
-        final IErlModule external = ErlModelUtils.getExternalModule(moduleName,
-                model.getExternalModules(erlProject));
-        if (external != null) {
-            modules.add(external);
+        IErlModule m = ModuleIndex.getDefault().findModule(project, moduleName);
+        if (m == null) {
+            m = ErlModelUtils.getExternalModule(moduleName, model
+                    .getExternalModules(erlProject));
         }
         boolean foundInModel = false;
         final List<ICompletionProposal> result = new ArrayList<ICompletionProposal>();
-        for (final IErlModule m : modules) {
-            if (ErlideUtil.withoutExtension(m.getModuleName()).equals(
-                    moduleName)) {
-                try {
-                    m.open(null);
-                    for (final IErlElement e : m.getChildren()) {
-                        if (e instanceof IErlFunction) {
-                            final IErlFunction f = (IErlFunction) e;
-                            if (f.isExported()) {
-                                addFunctionCompletion(offset, aprefix, result,
-                                        f, arityOnly);
-                                foundInModel = true;
-                            }
+        if (m != null) {
+            try {
+                m.open(null);
+                for (final IErlElement e : m.getChildren()) {
+                    if (e instanceof IErlFunction) {
+                        final IErlFunction f = (IErlFunction) e;
+                        if (f.isExported()) {
+                            addFunctionCompletion(offset, aprefix, result, f,
+                                    arityOnly);
+                            foundInModel = true;
                         }
                     }
-                } catch (final ErlModelException e) {
-                    e.printStackTrace();
                 }
+            } catch (final ErlModelException e) {
+                e.printStackTrace();
             }
         }
 
         // then check built stuff and otp
         if (!foundInModel) {
-            final OtpErlangObject res = ErlideDoc.getProposalsWithDoc(b,
-                    moduleName, aprefix, stateDir);
-            addFunctionProposalsWithDoc(offset, aprefix, result, res, null,
-                    arityOnly);
+            final OtpErlangObject res = ModuleIndex.getDefault().getProposals(
+                    b, moduleName, aprefix, stateDir);
+            // the parameter offsets are for the empty prefix
+            addFunctionProposalsWithDoc(offset, offset - aprefix.length(),
+                    aprefix, result, res, null, arityOnly);
         }
         return result;
     }
 
+    /**
+     * @param parOffset
+     *            where the parameter offsets in the proposals are counted from
+     */
     private void addFunctionProposalsWithDoc(final int offset,
-            final String aprefix, final List<ICompletionProposal> result,
-            final OtpErlangObject res, final IErlImport erlImport,
-            final boolean arityOnly) {
+            final int parOffset, final String aprefix,
+            final List<ICompletionProposal> result, final OtpErlangObject res,
+            final IErlImport erlImport, final boolean arityOnly) {
         if (res instanceof OtpErlangList) {
             final OtpErlangList resl = (OtpErlangList) res;
             for (final OtpErlangObject i : resl) {
@@ -564,7 +534,8 @@ public class ErlContentAssistProcessor implements IContentAssistProcessor {
                         .length());
                 final List<Point> offsetsAndLengths = new ArrayList<Point>();
                 if (!arityOnly) {
-                    addOffsetsAndLengths(parOffsets, offset, offsetsAndLengths);
+                    addOffsetsAndLengths(parOffsets, parOffset,
+                            offsetsAndLengths);
                 }
                 addFunctionCompletion(offset, result, funWithArity, docStr,
                         funWithParameters, offsetsAndLengths);
@@ -31,7 +31,7 @@ class ElementChangedListener implements IElementChangedListener {
 
     public void elementChanged(final ElementChangedEvent e) {
 
-        if (page.getControl() == null) {
+        if (page == null || page.getControl() == null) {
             return;
         }
 
@@ -756,7 +756,9 @@ public class DefaultErlangFoldingStructureProvider implements
         return null;
     }
 
-    protected void processDelta(final IErlElementDelta delta) {
+    // called from the parser's model change notification as well as from the
+    // model manager's notifier thread
+    protected synchronized void processDelta(final IErlElementDelta delta) {
         if (!isInstalled()) {
             return;
         }
@@ -1104,7 +1106,7 @@ public class DefaultErlangFoldingStructureProvider implements
      * org.erlide.core.erlang.IErlModelChangeListener#elementChanged(org.erlide
      * .core.erlang.IErlElement)
      */
-    public void elementChanged(final IErlElement element) {
+    public synchronized void elementChanged(final IErlElement element) {
         // TODO fixa elementchangelistener n?n g?ng
         if (fEditor == null) {
             return;
@@ -5,6 +5,9 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -19,20 +22,34 @@ import org.erlide.core.erlang.ErlangCore;
 import org.erlide.core.erlang.IErlElement;
 import org.erlide.core.erlang.IErlModule;
 import org.erlide.core.search.ModuleLineFunctionArityRef;
+import org.erlide.jinterface.backend.BackendException;
+import org.erlide.jinterface.backend.events.EventHandler;
+import org.erlide.jinterface.backend.util.Util;
+import org.erlide.jinterface.util.ErlLogger;
 import org.erlide.runtime.backend.ErlideBackend;
 
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPid;
+import com.ericsson.otp.erlang.OtpErlangRangeException;
+import com.ericsson.otp.erlang.OtpErlangTuple;
 import com.google.common.collect.Lists;
 
 import erlang.ErlangSearchPattern;
 import erlang.ErlideSearchServer;
 
 public class ErlSearchQuery implements ISearchQuery {
+    // the longest wait for the next event of a search, reading the modules
+    // that aren't indexed yet can take a while
+    private static final long IDLE_TIMEOUT = 120000;
+
     private final ErlangSearchPattern pattern;
     private final Collection<IResource> scope;
     private final Collection<IErlModule> externalScope;
     private final Map<String, IErlModule> pathToModuleMap;
     private ErlangSearchResult fSearchResult;
-    private List<ModuleLineFunctionArityRef> fResult;
 
     private String stateDirCached = null;
     private final String scopeDescription;
@@ -83,24 +100,108 @@ public class ErlSearchQuery implements ISearchQuery {
         return fSearchResult;
     }
 
+    /**
+     * The results are shown as they arrive from the backend, a chunk at a
+     * time; canceling the monitor stops the search there too. The search
+     * also stops if the backend goes down or sends nothing for too long.
+     */
     public IStatus run(final IProgressMonitor monitor)
             throws OperationCanceledException {
         final ErlideBackend backend = ErlangCore.getBackendManager()
                 .getIdeBackend();
-        fResult = ErlideSearchServer.findRefs(backend, pattern, scope,
-                externalScope, getStateDir());
-        final List<Match> l = Lists.newArrayListWithCapacity(fResult.size());
+        fSearchResult = (ErlangSearchResult) getSearchResult();
+        fSearchResult.removeAll();
+        if (backend == null) {
+            return Status.OK_STATUS;
+        }
+        monitor.beginTask(getLabel(), IProgressMonitor.UNKNOWN);
+        final SearchEventHandler handler = new SearchEventHandler();
+        backend.getEventDaemon().addHandler(handler);
+        try {
+            final OtpErlangPid search = ErlideSearchServer.startFindRefs(
+                    backend, pattern, scope, externalScope, getStateDir());
+            int received = 0;
+            int expected = -1;
+            long lastEvent = System.currentTimeMillis();
+            while (expected < 0 || received < expected) {
+                if (monitor.isCanceled()) {
+                    ErlideSearchServer.cancelFindRefs(backend, search);
+                    return Status.CANCEL_STATUS;
+                }
+                if (!backend.isAvailable()) {
+                    ErlLogger.warn("search stopped, the backend is down");
+                    break;
+                }
+                if (System.currentTimeMillis() - lastEvent > IDLE_TIMEOUT) {
+                    ErlLogger.error("search timed out");
+                    ErlideSearchServer.cancelFindRefs(backend, search);
+                    break;
+                }
+                final OtpErlangTuple event = handler.events.poll(100,
+                        TimeUnit.MILLISECONDS);
+                if (event == null || !search.equals(event.elementAt(0))) {
+                    continue;
+                }
+                lastEvent = System.currentTimeMillis();
+                final String kind = ((OtpErlangAtom) event.elementAt(1))
+                        .atomValue();
+                if ("refs".equals(kind)) {
+                    addResult(ErlideSearchServer
+                            .getRefs((OtpErlangList) event.elementAt(2)));
+                    received++;
+                    monitor.worked(1);
+                } else if ("done".equals(kind)) {
+                    expected = ((OtpErlangLong) event.elementAt(2)).intValue();
+                    final OtpErlangObject r = event.elementAt(3);
+                    if (!Util.isOk(r)) {
+                        ErlLogger.error("search failed: %s", r);
+                        break;
+                    }
+                }
+            }
+            return Status.OK_STATUS;
+        } catch (final BackendException e) {
+            ErlLogger.error(e);
+            return Status.OK_STATUS;
+        } catch (final OtpErlangRangeException e) {
+            ErlLogger.error(e);
+            return Status.OK_STATUS;
+        } catch (final InterruptedException e) {
+            return Status.CANCEL_STATUS;
+        } finally {
+            backend.getEventDaemon().removeHandler(handler);
+            monitor.done();
+        }
+    }
+
+    private void addResult(final List<ModuleLineFunctionArityRef> refs) {
+        final List<Match> l = Lists.newArrayListWithCapacity(refs.size());
         final List<ErlangSearchElement> result = Lists
-                .newArrayListWithCapacity(fResult.size());
-        for (final ModuleLineFunctionArityRef ref : fResult) {
+                .newArrayListWithCapacity(refs.size());
+        for (final ModuleLineFunctionArityRef ref : refs) {
             final Match m = SearchUtil.createMatch(ref, pathToModuleMap);
             l.add(m);
             result.add((ErlangSearchElement) m.getElement());
         }
-        fSearchResult = (ErlangSearchResult) getSearchResult();
-        fSearchResult.setResult(result);
+        fSearchResult.addResult(result);
         fSearchResult.addMatches(l.toArray(new Match[l.size()]));
-        return Status.OK_STATUS;
+    }
+
+    private static class SearchEventHandler extends EventHandler {
+        final BlockingQueue<OtpErlangTuple> events = new LinkedBlockingQueue<OtpErlangTuple>();
+
+        @Override
+        public String[] getTopics() {
+            return new String[] { "find_refs" };
+        }
+
+        @Override
+        protected void doHandleMsg(final OtpErlangObject msg) throws Exception {
+            final OtpErlangObject event = getStandardEvent(msg, "find_refs");
+            if (event instanceof OtpErlangTuple) {
+                events.add((OtpErlangTuple) event);
+            }
+        }
     }
 
     private String getStateDir() {
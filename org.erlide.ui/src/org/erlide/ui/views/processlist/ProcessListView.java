@@ -117,6 +117,11 @@ public class ProcessListView extends ViewPart {
 
         class ProcessEventHandler extends EventHandler {
 
+            @Override
+            public String[] getTopics() {
+                return new String[] { "processlist" };
+            }
+
             @Override
             protected void doHandleMsg(final OtpErlangObject msg)
                     throws Exception {